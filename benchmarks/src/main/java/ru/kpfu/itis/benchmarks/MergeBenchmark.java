@@ -0,0 +1,48 @@
+package ru.kpfu.itis.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.kpfu.itis.table.ExcelTable;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ExcelTable.merge of a new snapshot into history
+ * Snapshot shares 95% of data-ids with history, the rest are new rows.
+ * History is rebuilt before each invocation because merge modifies it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class MergeBenchmark {
+
+    @Param({"600", "10000"})
+    public int rows;
+
+    @Param({"1", "50"})
+    public int columns;
+
+    private ExcelTable snapshot;
+    private ExcelTable history;
+
+
+    @Setup(Level.Trial)
+    public void setUpSnapshot() {
+        snapshot = SyntheticData.snapshot(rows, 2, rows / 20);
+    }
+
+
+    @Setup(Level.Invocation)
+    public void setUpHistory() {
+        history = SyntheticData.history(rows, columns, 1);
+    }
+
+
+    @Benchmark
+    public ExcelTable merge() {
+        history.merge(snapshot, 3);
+        return history;
+    }
+}
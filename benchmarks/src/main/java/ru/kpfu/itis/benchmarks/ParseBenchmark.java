@@ -0,0 +1,50 @@
+package ru.kpfu.itis.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.kpfu.itis.html.HTMLTableService;
+import ru.kpfu.itis.table.ExcelTable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTMLTableService.createTable on a synthetic basket page
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParseBenchmark {
+
+    @Param({"600", "10000"})
+    public int rows;
+
+    @Param({"DOM", "STREAMING", "PARALLEL"})
+    public HTMLTableService.ParseMode mode;
+
+    private final HTMLTableService service = new HTMLTableService();
+    private Path page;
+
+
+    @Setup
+    public void setUp() throws IOException {
+        page = Files.createTempFile("basket", ".html");
+        SyntheticData.writeBasketPage(page, rows, 1, 0);
+    }
+
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(page);
+    }
+
+
+    @Benchmark
+    public ExcelTable createTable() throws IOException {
+        return service.createTable(page.toString(), mode);
+    }
+}
@@ -0,0 +1,62 @@
+package ru.kpfu.itis.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.kpfu.itis.excel.ExcelTableService;
+import ru.kpfu.itis.table.ExcelTable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading of a synthetic history workbook
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ReadBenchmark {
+
+    @Param({"600", "10000"})
+    public int rows;
+
+    @Param({"1", "50"})
+    public int columns;
+
+    private final ExcelTableService service = new ExcelTableService(ExcelTableService.DEFAULT_ROW_WINDOW);
+    private Path workbook;
+
+
+    @Setup
+    public void setUp() throws IOException {
+        workbook = Files.createTempFile("history", ".xlsx");
+        SyntheticData.writeHistoryWorkbook(workbook, rows, columns, 1);
+    }
+
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(workbook);
+    }
+
+
+    @Benchmark
+    public ExcelTable readTable2() throws IOException {
+        return service.readTable2(workbook.toString());
+    }
+
+
+    @Benchmark
+    public ExcelTable readTable2Projected() throws IOException {
+        return service.readTable2(workbook.toString(), 0, 1, 2, -1); //columns used by merge
+    }
+
+
+    @Benchmark
+    public ExcelTableService.WorkbookTables readTables() throws IOException {
+        return service.readTables(workbook.toString());
+    }
+}
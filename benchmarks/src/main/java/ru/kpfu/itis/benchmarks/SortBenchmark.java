@@ -0,0 +1,44 @@
+package ru.kpfu.itis.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.kpfu.itis.table.ExcelTable;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ExcelTable.sort by name (text) and by the last history column (integers)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SortBenchmark {
+
+    @Param({"600", "10000"})
+    public int rows;
+
+    @Param({"1", "50"})
+    public int columns;
+
+    private ExcelTable history;
+
+
+    @Setup
+    public void setUp() {
+        history = SyntheticData.history(rows, columns, 1);
+    }
+
+
+    @Benchmark
+    public ExcelTable sortByName() {
+        return history.sort(1);
+    }
+
+
+    @Benchmark
+    public ExcelTable sortByLastColumn() {
+        return history.sort(history.columnCount() - 1);
+    }
+}
@@ -0,0 +1,135 @@
+package ru.kpfu.itis.benchmarks;
+
+import ru.kpfu.itis.excel.CellBlock;
+import ru.kpfu.itis.excel.ExcelTableService;
+import ru.kpfu.itis.table.ExcelTable;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Generator of synthetic basket pages and history workbooks
+ * Data is deterministic for the same seed. Products are grouped (rowspan 1..4) like on the real site,
+ * data-ids are sequential starting from 'idStart', every 20th history cell is blank.
+ */
+public final class SyntheticData {
+
+    private static final int MAX_GROUP_SIZE = 4;
+    private static final int BLANK_RATE = 20;
+
+    private SyntheticData() { }
+
+
+    /**
+     * Writes basket HTML page
+     *
+     * @param path    - file to be written
+     * @param rows    - count of product rows
+     * @param seed    - random seed
+     * @param idStart - first data-id
+     * @throws IOException - if file could not be written
+     */
+    public static void writeBasketPage(Path path, int rows, long seed, int idStart) throws IOException {
+        Random random = new Random(seed);
+        try (Writer w = new BufferedWriter(Files.newBufferedWriter(path, StandardCharsets.UTF_8), 1 << 16)) {
+            w.write("<!DOCTYPE html><html><head><meta charset=\"utf-8\"><title>Корзина</title></head><body>\n");
+            w.write("<div class=\"wrap b2b-basket-prods-list\"><table><tbody>\n");
+
+            int id = idStart;
+            for (int group = 0; id - idStart < rows; group++) {
+                int span = Math.min(1 + random.nextInt(MAX_GROUP_SIZE), rows - (id - idStart));
+                for (int k = 0; k < span; k++) {
+                    w.write("<tr data-id=\"" + (id++) + "\">");
+                    if (k == 0) {
+                        w.write("<td class=\"c1\" rowspan=\"" + span + "\"><a href=\"#\">" + productName(group) + "</a></td>");
+                    }
+                    w.write("<td class=\"c2\">" + (1 + random.nextInt(90)) + "</td>");
+                    w.write("<td class=\"c9\"><div><input type=\"text\" max=\"" + random.nextInt(50) + "\"/></div></td></tr>\n");
+                }
+            }
+            w.write("</tbody></table></div></body></html>\n");
+        }
+    }
+
+
+    /**
+     * Creates history table (header row, data-id, name, tone number and 'columns' history columns)
+     *
+     * @param rows    - count of product rows
+     * @param columns - count of history columns
+     * @param seed    - random seed
+     * @return table in the state it has after reading the workbook
+     */
+    public static ExcelTable history(int rows, int columns, long seed) {
+        Random random = new Random(seed);
+        ExcelTable table = new ExcelTable(rows + 1, 3 + columns);
+
+        String[] values = new String[3 + columns];
+        values[0] = ExcelTable.HEADERS_KEY;
+        values[1] = "название";
+        values[2] = "номер тона";
+        for (int column = 0; column < columns; column++) {
+            values[3 + column] = String.format("%02d.01.2017 10:00:00", column % 28 + 1);
+        }
+        table.addRow(ExcelTable.HEADERS_KEY, values);
+
+        for (int row = 0; row < rows; row++) {
+            String id = Integer.toString(row);
+            values[0] = id;
+            values[1] = productName(row / 3);
+            values[2] = Integer.toString(1 + random.nextInt(90));
+            for (int column = 0; column < columns; column++) {
+                values[3 + column] = random.nextInt(BLANK_RATE) == 0 ? "" : Integer.toString(random.nextInt(50));
+            }
+            table.addRow(id, values);
+        }
+        return table;
+    }
+
+
+    /**
+     * Creates table of one parsed page (header row, data-id, name, tone number, max count)
+     *
+     * @param rows    - count of product rows
+     * @param seed    - random seed
+     * @param idStart - first data-id
+     * @return table in the state it has after parsing HTML page
+     */
+    public static ExcelTable snapshot(int rows, long seed, int idStart) {
+        Random random = new Random(seed);
+        ExcelTable table = new ExcelTable(rows + 1, 4);
+        table.addRow(ExcelTable.HEADERS_KEY, new String[]{ExcelTable.HEADERS_KEY, "название", "номер тона", "01.02.2017 10:00:00"});
+
+        for (int row = 0; row < rows; row++) {
+            String id = Integer.toString(idStart + row);
+            table.addRow(id, new String[]{id, productName((idStart + row) / 3),
+                    Integer.toString(1 + random.nextInt(90)), Integer.toString(random.nextInt(50))});
+        }
+        return table;
+    }
+
+
+    /**
+     * Writes history workbook (empty left block and history table)
+     *
+     * @param path    - file to be written
+     * @param rows    - count of product rows
+     * @param columns - count of history columns
+     * @param seed    - random seed
+     * @throws IOException - if file could not be written
+     */
+    public static void writeHistoryWorkbook(Path path, int rows, int columns, long seed) throws IOException {
+        new ExcelTableService(ExcelTableService.DEFAULT_ROW_WINDOW)
+                .writeTwoTables(new CellBlock(0), history(rows, columns, seed), path.toString());
+    }
+
+
+    private static String productName(int group) {
+        return "PAESE Помада \"Тон\" № " + group;
+    }
+}
@@ -0,0 +1,58 @@
+package ru.kpfu.itis.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.kpfu.itis.excel.CellBlock;
+import ru.kpfu.itis.excel.ExcelTableService;
+import ru.kpfu.itis.table.ExcelTable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ExcelTableService.writeTwoTables of sorted history
+ * window - row access window of the service (0 - in-memory workbook)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WriteBenchmark {
+
+    @Param({"600", "10000"})
+    public int rows;
+
+    @Param({"1", "50"})
+    public int columns;
+
+    @Param({"100"})
+    public int window;
+
+    private ExcelTableService service;
+    private ExcelTable sorted;
+    private Path workbook;
+
+
+    @Setup
+    public void setUp() throws IOException {
+        service = new ExcelTableService(window);
+        sorted = SyntheticData.history(rows, columns, 1).sort(1);
+        workbook = Files.createTempFile("history", ".xlsx");
+    }
+
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(workbook);
+    }
+
+
+    @Benchmark
+    public Path writeTwoTables() throws IOException {
+        service.writeTwoTables(new CellBlock(0), sorted, workbook.toString());
+        return workbook;
+    }
+}
@@ -1,7 +1,10 @@
 package ru.kpfu.itis;
 
 import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import ru.kpfu.itis.batch.BatchConverter;
+import ru.kpfu.itis.excel.CellBlock;
 import ru.kpfu.itis.excel.ExcelTableService;
+import ru.kpfu.itis.excel.HistoryPartitions;
 import ru.kpfu.itis.html.HTMLTableService;
 import ru.kpfu.itis.table.ExcelTable;
 
@@ -9,6 +12,8 @@ import javax.swing.*;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Application extends JFrame {
 
@@ -17,6 +22,14 @@ public class Application extends JFrame {
      **/
     private ExcelTableService excelTableConverter;
     private HTMLTableService htmlToExcelTableConverter;
+    private HistoryPartitions historyPartitions;
+
+
+    /**
+     * History columns kept in the workbook and moved to one archive (a year of daily snapshots)
+     **/
+    private static final int HOT_COLUMNS = 365;
+    private static final int ARCHIVE_COLUMNS = 365;
 
     /**
      * Files
@@ -29,18 +42,25 @@ public class Application extends JFrame {
     private int sortColumn = 1; //be default 0
 
 
+    /**
+     * Running background task, null if there is none
+     **/
+    private PipelineTask task;
+
+
     public Application() {
         super("HTML -> XLSX"); //window title
         this.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         JFrame.setDefaultLookAndFeelDecorated(true);
         this.setResizable(false);
-        this.setBounds(500, 300, 400, 270); //size of window
+        this.setBounds(500, 300, 400, 300); //size of window
         createGUI();
         this.setVisible(true); //make it visible
 
         //init services
-        excelTableConverter = new ExcelTableService();
+        excelTableConverter = new ExcelTableService(ExcelTableService.DEFAULT_ROW_WINDOW);
         htmlToExcelTableConverter = new HTMLTableService();
+        historyPartitions = new HistoryPartitions(excelTableConverter, HOT_COLUMNS, ARCHIVE_COLUMNS);
     }
 
 
@@ -91,85 +111,163 @@ public class Application extends JFrame {
         JButton createNewExcelBtn = new JButton("Создать новый excel из html");
         createNewExcelBtn.setBounds(90, 120, 210, 40);
         mainPanel.add(createNewExcelBtn);
-        createNewExcelBtn.addActionListener(e -> {
 
-            switchButtons(false, chooseHtmlBtn, createNewExcelBtn); //disable  buttons
-
-            if (htmlFile != null) {
-                JFileChooser save = new JFileChooser();
-                if (JFileChooser.APPROVE_OPTION == save.showSaveDialog(mainPanel)) {
-                    newExcelFile = save.getSelectedFile();
-                    try {
-                        ExcelTable table = htmlToExcelTableConverter.createTable(htmlFile.getPath());
-                        excelTableConverter.writeTable(table.sort(sortColumn), newExcelFile.getPath());
+        updateExcelBtn.setBounds(90, 180, 210, 40);
+        mainPanel.add(updateExcelBtn);
 
-                        htmlFile = null;
-                        newExcelFile = null;
+        JProgressBar progressBar = new JProgressBar(0, 100);
+        progressBar.setStringPainted(true);
+        progressBar.setString("");
+        progressBar.setBounds(40, 235, 220, 25);
+        mainPanel.add(progressBar);
+
+        JButton cancelBtn = new JButton("Отмена");
+        cancelBtn.setBounds(270, 235, 110, 25);
+        cancelBtn.setEnabled(false);
+        mainPanel.add(cancelBtn);
+        cancelBtn.addActionListener(e -> {
+            if (task != null) task.cancel(false); //stops between stages, result comes when the task has stopped
+        });
 
-                        chooseHtmlLabel.setText("Файл не выбран");
-                        chooseExcelLabel.setText("Выбери *.xlsx файл");
+        JButton[] buttons = {chooseHtmlBtn, chooseExcelBtn, updateExcelBtn, createNewExcelBtn};
 
-                    } catch (IOException e1) {
-                        JOptionPane.showMessageDialog(mainPanel, e1.getMessage(), "Ошибка", JOptionPane.ERROR_MESSAGE);
-                        switchButtons(true, chooseHtmlBtn, createNewExcelBtn);
-                        return;
-                    }
-                    JOptionPane.showMessageDialog(mainPanel, "Файл успешно сконвертирован!", "Успех", JOptionPane.INFORMATION_MESSAGE);
-                }
+        createNewExcelBtn.addActionListener(e -> {
 
-            } else {
+            if (htmlFile == null) {
                 JOptionPane.showMessageDialog(mainPanel, "Выбери html файл!", "Ошибка", JOptionPane.WARNING_MESSAGE);
+                return;
             }
-            switchButtons(true, chooseHtmlBtn, createNewExcelBtn);
-        });
 
+            JFileChooser save = new JFileChooser();
+            if (JFileChooser.APPROVE_OPTION != save.showSaveDialog(mainPanel)) return;
+            newExcelFile = save.getSelectedFile();
+
+            //files are captured, background thread does not touch the fields
+            String htmlPath = htmlFile.getPath();
+            String newExcelPath = newExcelFile.getPath();
+
+            startTask(task -> {
+                task.enter(PipelineTask.Stage.PARSE);
+                ExcelTable table = htmlToExcelTableConverter.createTable(htmlPath);
+                task.enter(PipelineTask.Stage.SORT);
+                ExcelTable sorted = table.sort(sortColumn);
+                task.enter(PipelineTask.Stage.WRITE);
+                excelTableConverter.writeTable(sorted, newExcelPath);
+            }, "Файл успешно сконвертирован!", progressBar, cancelBtn, buttons, () -> {
+                htmlFile = null;
+                newExcelFile = null;
 
-        updateExcelBtn.setBounds(90, 180, 210, 40);
-        mainPanel.add(updateExcelBtn);
+                chooseHtmlLabel.setText("Файл не выбран");
+                chooseExcelLabel.setText("Выбери *.xlsx файл");
+            }, PipelineTask.Stage.PARSE, PipelineTask.Stage.SORT, PipelineTask.Stage.WRITE);
+        });
 
         updateExcelBtn.addActionListener(e -> {
 
-            switchButtons(false, chooseHtmlBtn, chooseExcelBtn, updateExcelBtn, createNewExcelBtn);
-
-            if (excelFile != null && htmlFile != null) {
-                try {
-
-                    ExcelTable table = htmlToExcelTableConverter.createTable(htmlFile.getPath());
-                    ExcelTable oldTable2 = excelTableConverter.readTable2(excelFile.getPath()); //get 2 and 1 tables
-                    ExcelTableService.CellData[][] table1 = excelTableConverter.readTable1(excelFile.getPath());
+            if (excelFile == null || htmlFile == null) {
+                JOptionPane.showMessageDialog(mainPanel, "Выбери html и excel файлы!", "Ошибка", JOptionPane.WARNING_MESSAGE);
+                return;
+            }
 
-                    oldTable2.merge(table, 3);
-                    excelTableConverter.writeTwoTables(table1, oldTable2.sort(1), excelFile.getPath());
+            String htmlPath = htmlFile.getPath();
+            String excelPath = excelFile.getPath();
 
-                } catch (IOException | RuntimeException e1) {
-                    e1.printStackTrace();
-                    JOptionPane.showMessageDialog(mainPanel, e1.getMessage(), "Ошибка", JOptionPane.ERROR_MESSAGE);
-                    switchButtons(true, chooseHtmlBtn, chooseExcelBtn, updateExcelBtn, createNewExcelBtn);
-                    return;
+            startTask(task -> {
+                //workbook is read while html is parsed, its tables are needed only if the page can not be appended
+                AtomicBoolean patching = new AtomicBoolean();
+                CompletableFuture<ExcelTableService.WorkbookTables> loaded =
+                        excelTableConverter.readTablesAsync(excelPath, patching::get);
+                try {
+                    task.enter(PipelineTask.Stage.PARSE);
+                    ExcelTable table = htmlToExcelTableConverter.createTable(htmlPath);
+                    task.enter(PipelineTask.Stage.READ);
+                    //only new column and rows are written if name and tone numbers are not changed
+                    boolean appended = excelTableConverter.appendTable(table, excelPath, () -> {
+                        patching.set(true);
+                        loaded.handle((tables, ex) -> null).join(); //file is closed by the reader, it may be replaced
+                    });
+                    if (!appended) {
+                        //name or tone number has changed, whole table is merged and rewritten
+                        ExcelTableService.WorkbookTables tables = ExcelTableService.await(loaded); //get 2 and 1 tables
+                        ExcelTable oldTable2 = tables.getRight();
+                        CellBlock table1 = tables.getLeft();
+
+                        task.enter(PipelineTask.Stage.MERGE);
+                        oldTable2.merge(table, 3);
+                        task.enter(PipelineTask.Stage.SORT);
+                        ExcelTable sorted = oldTable2.sort(sortColumn);
+                        task.enter(PipelineTask.Stage.WRITE);
+                        excelTableConverter.writeTwoTables(table1, sorted, excelPath);
+                    }
+                } finally {
+                    patching.set(true); //background read is stopped if the task has failed
                 }
+                //workbook is already updated, archives are rolled on the next update if the task is cancelled here
+                task.enter(PipelineTask.Stage.ARCHIVE);
+                historyPartitions.roll(excelPath); //oldest columns are moved to archives
+            }, "Данные успешно обновлены!", progressBar, cancelBtn, buttons, () -> {
                 htmlFile = null;
                 excelFile = null;
                 newExcelFile = null;
 
                 chooseHtmlLabel.setText("Файл не выбран");
                 chooseExcelLabel.setText("Выбери *.xlsx файл");
+            }, PipelineTask.Stage.values());
+        });
 
-                JOptionPane.showMessageDialog(mainPanel, "Данные успешно обновлены!", "Успех", JOptionPane.INFORMATION_MESSAGE);
-
-            } else {
-                JOptionPane.showMessageDialog(mainPanel, "Выбери html и excel файлы!", "Ошибка", JOptionPane.WARNING_MESSAGE);
-            }
+        this.getContentPane().add(mainPanel);
+    }
 
-            switchButtons(true, chooseHtmlBtn, chooseExcelBtn, updateExcelBtn, createNewExcelBtn);
 
 
-        });
+    /**
+     * Runs pipeline in background, buttons are disabled until it is finished
+     *
+     * @param pipeline  - work to be done off the EDT
+     * @param message   - message shown on success
+     * @param onSuccess - UI update on success (runs on the EDT)
+     * @param stages    - stages entered by the pipeline
+     */
+    private void startTask(PipelineTask.Pipeline pipeline, String message, JProgressBar progressBar,
+                           JButton cancelBtn, JButton[] buttons, Runnable onSuccess, PipelineTask.Stage... stages) {
+
+        switchButtons(false, buttons); //disable  buttons
+        cancelBtn.setEnabled(true);
+        progressBar.setValue(0);
+
+        task = new PipelineTask(pipeline, new PipelineTask.Listener() {
+            @Override
+            public void stage(PipelineTask.Stage stage, int progress) {
+                progressBar.setValue(progress);
+                progressBar.setString(stage.getTitle());
+            }
 
-        this.getContentPane().add(mainPanel);
+            @Override
+            public void finished(boolean cancelled, Throwable error) {
+                task = null;
+                cancelBtn.setEnabled(false);
+                switchButtons(true, buttons);
+
+                if (cancelled) {
+                    progressBar.setValue(0);
+                    progressBar.setString("Отменено");
+                } else if (error != null) {
+                    error.printStackTrace();
+                    progressBar.setValue(0);
+                    progressBar.setString("");
+                    JOptionPane.showMessageDialog(Application.this, error.getMessage(), "Ошибка", JOptionPane.ERROR_MESSAGE);
+                } else {
+                    progressBar.setValue(100);
+                    progressBar.setString("Готово");
+                    onSuccess.run();
+                    JOptionPane.showMessageDialog(Application.this, message, "Успех", JOptionPane.INFORMATION_MESSAGE);
+                }
+            }
+        }, stages);
+        task.execute();
     }
 
 
-
     private void switchButtons(boolean state, JButton... buttons) {
         for (JButton b : buttons) {
             b.setEnabled(state);
@@ -177,6 +275,10 @@ public class Application extends JFrame {
     }
 
     public static void main(String[] args) throws IOException, InvalidFormatException {
+        if (args.length > 0) {
+            BatchConverter.main(args); //headless batch mode
+            return;
+        }
         SwingUtilities.invokeLater(Application::new);
     }
 
@@ -0,0 +1,137 @@
+package ru.kpfu.itis;
+
+import ru.kpfu.itis.metrics.Metrics;
+
+import javax.swing.*;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Background task of conversion / update flow
+ * Pipeline runs off the event dispatch thread, stages and the result are delivered on the EDT.
+ * Cancellation is cooperative (task is cancelled without interrupt): it is checked between stages,
+ * a stage which has been started is finished, so the workbook is never left half-written and channels
+ * are not closed by an interrupt. The result is delivered when the pipeline has actually stopped,
+ * not when the task is cancelled (SwingWorker.done() is called right on cancel).
+ */
+final class PipelineTask extends SwingWorker<Void, PipelineTask.Stage> {
+
+    /**
+     * Stages of the pipeline
+     **/
+    enum Stage {
+        PARSE("Чтение html"),
+        READ("Чтение excel"),
+        MERGE("Слияние"),
+        SORT("Сортировка"),
+        WRITE("Запись"),
+        ARCHIVE("Архивирование");
+
+        private final String title;
+
+        Stage(String title) {
+            this.title = title;
+        }
+
+        String getTitle() {
+            return title;
+        }
+    }
+
+
+    /**
+     * Work of the task, calls enter() before each stage
+     */
+    interface Pipeline {
+        void run(PipelineTask task) throws IOException;
+    }
+
+
+    /**
+     * Receives stages and result, is called on the EDT
+     */
+    interface Listener {
+        void stage(Stage stage, int progress);
+
+        void finished(boolean cancelled, Throwable error);
+    }
+
+
+    private final List<Stage> stages;
+    private final Pipeline pipeline;
+    private final Listener listener;
+    private boolean finished; //result has been delivered, is accessed on the EDT only
+
+
+    /**
+     * Constructor
+     *
+     * @param pipeline - work of the task
+     * @param listener - receiver of stages and result
+     * @param stages   - stages of the pipeline in the order they are entered (used for progress)
+     */
+    PipelineTask(Pipeline pipeline, Listener listener, Stage... stages) {
+        this.pipeline = pipeline;
+        this.listener = listener;
+        this.stages = Arrays.asList(stages);
+    }
+
+
+    /**
+     * Starts new stage
+     *
+     * @param stage - stage to be started
+     * @throws CancellationException - if task was cancelled
+     */
+    void enter(Stage stage) {
+        if (isCancelled()) throw new CancellationException();
+        publish(stage);
+    }
+
+
+    @Override
+    protected Void doInBackground() {
+        boolean cancelled = false;
+        Throwable error = null;
+        try {
+            pipeline.run(this);
+        } catch (CancellationException e) {
+            cancelled = true;
+        } catch (Throwable e) {
+            error = e;
+        } finally {
+            writeMetrics();
+        }
+
+        //pipeline which has been finished despite late cancel is reported as completed
+        final boolean result = cancelled;
+        final Throwable cause = error;
+        SwingUtilities.invokeLater(() -> {
+            finished = true;
+            listener.finished(result, cause);
+        });
+        return null;
+    }
+
+
+    /**
+     * Writes metrics file if it is configured, failure does not affect the task
+     */
+    private static void writeMetrics() {
+        try {
+            Metrics.writeFile();
+        } catch (IOException e) {
+            System.err.println("Metrics file could not be written: " + e.getMessage());
+        }
+    }
+
+
+    @Override
+    protected void process(List<Stage> chunks) {
+        if (finished) return; //stage is delivered after the result
+        Stage stage = chunks.get(chunks.size() - 1); //only the latest stage is shown
+        listener.stage(stage, stages.indexOf(stage) * 100 / stages.size());
+    }
+}
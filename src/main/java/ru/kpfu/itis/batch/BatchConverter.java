@@ -0,0 +1,519 @@
+package ru.kpfu.itis.batch;
+
+import ru.kpfu.itis.excel.CellBlock;
+import ru.kpfu.itis.excel.ExcelTableService;
+import ru.kpfu.itis.excel.HistoryPartitions;
+import ru.kpfu.itis.html.HTMLTableService;
+import ru.kpfu.itis.html.SnapshotCache;
+import ru.kpfu.itis.metrics.Metrics;
+import ru.kpfu.itis.table.ExcelTable;
+import ru.kpfu.itis.table.HistoryStore;
+import ru.kpfu.itis.table.StringDictionary;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Headless batch converter
+ * Converts HTML files to separate xlsx files or merges them into one history workbook.
+ * HTML files are parsed on a fork-join pool, count of parsed documents kept in memory is bounded.
+ *
+ * Usage: [--threads N] [--max-in-flight N] [--streaming | --parallel] [--cache DIR] [--metrics FILE]
+ *        [--hot-columns N] (--out DIR | --merge FILE | --store FILE [--merge FILE]) inputs...
+ *        [--hot-columns N] [--quiet MILLIS] --watch DIR --merge FILE [inputs...]
+ * --parallel - rows of large pages are extracted in parallel (for few very large pages)
+ * --cache - directory of parsed pages cache (pages which were converted before are not parsed again)
+ * --hot-columns - history columns kept in the merged workbook (--merge without --store), older columns
+ *                 are moved to archive workbooks "<name>.archive-<n>.xlsx" (see HistoryPartitions)
+ * --metrics - file where stage metrics are written after the run (see Metrics)
+ * --store - binary history store, history is kept there and the workbook (--merge) is only a report
+ * --watch - inputs are merged, then HTML files arriving to the directory are merged until the process is stopped,
+ *           files arriving within --quiet ms (2000 by default) of each other are merged as one batch (see WatchDaemon)
+ * inputs - HTML files, directories (all *.html files) or glob patterns (e.g. "/data/2017-*&#47;*.html")
+ */
+public final class BatchConverter {
+
+    private static final String USAGE = "Usage: [--threads N] [--max-in-flight N] [--streaming | --parallel] "
+            + "[--cache DIR] [--metrics FILE] [--hot-columns N] "
+            + "(--out DIR | --merge FILE | --store FILE [--merge FILE]) inputs...\n"
+            + "       [--hot-columns N] [--quiet MILLIS] --watch DIR --merge FILE [inputs...]";
+
+    private static final long DEFAULT_QUIET_MILLIS = 2000;
+    private static final long MAX_DELAY_MILLIS = 30000; //batch is merged even if files keep arriving
+
+    private static final int SORT_COLUMN = 1;
+    private static final int KEY_COLUMNS = 3;
+
+
+    /**
+     * Settings
+     **/
+    private final int threads;
+    private final int maxInFlight;
+    private final HTMLTableService.ParseMode parseMode;
+
+    /**
+     * Services
+     **/
+    private final SnapshotCache cache;
+    private final HTMLTableService htmlService; //tables have their own dictionaries
+    private final ExcelTableService excelService = new ExcelTableService(ExcelTableService.DEFAULT_ROW_WINDOW);
+    private final HistoryPartitions partitions; //null - workbook is not partitioned
+
+
+    /**
+     * Constructor
+     *
+     * @param threads     - worker threads count
+     * @param maxInFlight - max count of documents being parsed or waiting for merge
+     * @param parseMode   - HTML parse mode
+     * @param cache       - cache of parsed pages (null - no cache)
+     */
+    public BatchConverter(int threads, int maxInFlight, HTMLTableService.ParseMode parseMode, SnapshotCache cache) {
+        this(threads, maxInFlight, parseMode, cache, 0);
+    }
+
+
+    /**
+     * Constructor
+     *
+     * @param threads     - worker threads count
+     * @param maxInFlight - max count of documents being parsed or waiting for merge
+     * @param parseMode   - HTML parse mode
+     * @param cache       - cache of parsed pages (null - no cache)
+     * @param hotColumns  - history columns kept in the merged workbook, older ones are moved to archives
+     *                    in chunks of the same size (0 - workbook is not partitioned)
+     */
+    public BatchConverter(int threads, int maxInFlight, HTMLTableService.ParseMode parseMode, SnapshotCache cache,
+                          int hotColumns) {
+        if (threads < 1 || maxInFlight < 1) {
+            throw new IllegalArgumentException(String.format("Threads (%d) and max in flight (%d) must be positive",
+                    threads, maxInFlight));
+        }
+        this.threads = threads;
+        this.maxInFlight = maxInFlight;
+        this.parseMode = parseMode;
+        this.cache = cache;
+        this.htmlService = new HTMLTableService(cache);
+        this.partitions = hotColumns > 0 ? new HistoryPartitions(excelService, hotColumns, hotColumns) : null;
+    }
+
+
+    /**
+     * Converts each HTML file into separate xlsx file (file.html -> outDir/file.xlsx)
+     *
+     * @param inputs - HTML files
+     * @param outDir - output directory
+     * @return summary of the run
+     * @throws IOException - if output directory could not be created
+     */
+    public BatchSummary convert(List<Path> inputs, Path outDir) throws IOException {
+        Files.createDirectories(outDir);
+        BatchSummary summary = new BatchSummary();
+
+        run(inputs, summary, input -> {
+            ExcelTable table = htmlService.createTable(input.toString(), parseMode);
+            excelService.writeTable(table.sort(SORT_COLUMN), outDir.resolve(xlsxName(input)).toString());
+            return table;
+        }, (input, table) -> { /* nothing to merge */ });
+
+        summary.finish();
+        return summary;
+    }
+
+
+    /**
+     * Merges HTML files into history workbook in the order of inputs
+     * If workbook does not exist, it is created from the first file. A single file is appended to an existing
+     * workbook (only the new column and rows are written, as the update of the application does) unless
+     * name or tone number of a row has changed. Several files are merged in memory and the workbook is written
+     * once: appending would rewrite the sheet for each of them. Workbook is read while the first files are parsed.
+     *
+     * @param inputs - HTML files
+     * @param target - history workbook
+     * @return summary of the run
+     * @throws IOException - if workbook could not be read or written
+     */
+    public BatchSummary merge(List<Path> inputs, Path target) throws IOException {
+        BatchSummary summary = new BatchSummary();
+
+        //tables of the run share a dictionary (key cells are merged by id), it is dropped after the run
+        StringDictionary dictionary = new StringDictionary(1 << 12);
+        HTMLTableService htmlService = new HTMLTableService(cache, dictionary);
+        ExcelTableService excelService = new ExcelTableService(ExcelTableService.DEFAULT_ROW_WINDOW, dictionary);
+
+        ExcelTable[] snapshot = new ExcelTable[1]; //single file which could not be appended, it is not parsed again
+        if (inputs.size() == 1 && Files.exists(target)) {
+            Path input = inputs.get(0);
+            try {
+                snapshot[0] = htmlService.createTable(input.toString(), parseMode);
+            } catch (IOException | RuntimeException e) {
+                summary.failure(input, e); //workbook is not changed
+                summary.finish();
+                return summary;
+            }
+            if (excelService.appendTable(snapshot[0], target.toString())) {
+                summary.success(input, snapshot[0].rowCount());
+                if (partitions != null) partitions.roll(target.toString());
+                summary.finish();
+                return summary;
+            }
+        }
+
+        CompletableFuture<ExcelTableService.WorkbookTables> loaded = Files.exists(target)
+                ? excelService.readTablesAsync(target.toString(), () -> false)
+                : CompletableFuture.completedFuture(new ExcelTableService.WorkbookTables(new CellBlock(0), null));
+        ExcelTable[] history = new ExcelTable[1];
+        boolean[] started = new boolean[1];
+
+        run(inputs, summary, input -> snapshot[0] != null ? snapshot[0]
+                : htmlService.createTable(input.toString(), parseMode), (input, table) -> {
+            if (!started[0]) {
+                history[0] = ExcelTableService.await(loaded).getRight(); //read error fails inputs, it is thrown below
+                started[0] = true;
+            }
+            if (history[0] == null) {
+                history[0] = table; //first snapshot becomes history
+            } else {
+                history[0].merge(table, KEY_COLUMNS);
+            }
+        });
+
+        CellBlock left = ExcelTableService.await(loaded).getLeft();
+        if (history[0] == null) history[0] = ExcelTableService.await(loaded).getRight(); //all inputs have failed
+        if (history[0] != null) {
+            excelService.writeTwoTables(left, history[0].sort(SORT_COLUMN), target.toString());
+            if (partitions != null) partitions.roll(target.toString());
+        }
+
+        summary.finish();
+        return summary;
+    }
+
+
+    /**
+     * Merges HTML files into history store in the order of inputs, each file is committed separately
+     * If store does not exist, it is created from the report workbook (if it exists) or from the first file.
+     *
+     * @param inputs - HTML files
+     * @param store  - history store file
+     * @param report - history workbook to be written after the merge, its first 3 columns are kept
+     *               (null - workbook is not written)
+     * @return summary of the run
+     * @throws IOException - if store or workbook could not be read or written
+     */
+    public BatchSummary mergeIntoStore(List<Path> inputs, Path store, Path report) throws IOException {
+        BatchSummary summary = new BatchSummary();
+
+        CellBlock left = new CellBlock(0);
+        HistoryStore[] history = new HistoryStore[1];
+        try {
+            if (report != null && Files.exists(report)) {
+                if (Files.exists(store)) {
+                    left = excelService.readTable1(report.toString()); //history is in the store, it is not decoded
+                } else {
+                    ExcelTableService.WorkbookTables tables = excelService.readTables(report.toString());
+                    left = tables.getLeft();
+                    history[0] = HistoryStore.create(store, tables.getRight()); //import
+                }
+            }
+            if (history[0] == null && Files.exists(store)) history[0] = HistoryStore.open(store);
+
+            run(inputs, summary, input -> htmlService.createTable(input.toString(), parseMode), (input, table) -> {
+                if (history[0] == null) {
+                    history[0] = HistoryStore.create(store, table); //first snapshot becomes history
+                } else {
+                    history[0].merge(table, KEY_COLUMNS);
+                }
+            });
+
+            if (report != null && history[0] != null) {
+                excelService.writeTwoTables(left, history[0].getTable().sort(SORT_COLUMN), report.toString());
+            }
+        } finally {
+            if (history[0] != null) history[0].close();
+        }
+
+        summary.finish();
+        return summary;
+    }
+
+
+    /**
+     * Parses inputs on the pool, results are consumed in the order of inputs
+     * Not more than maxInFlight documents are submitted ahead of the consumer.
+     */
+    private void run(List<Path> inputs, BatchSummary summary, Parser parser, Consumer consumer) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        List<Future<ExcelTable>> window = new ArrayList<>(Collections.nCopies(inputs.size(), null));
+        try {
+            int submitted = 0;
+            for (int i = 0; i < inputs.size(); i++) {
+                while (submitted < inputs.size() && submitted - i < maxInFlight) {
+                    Path input = inputs.get(submitted);
+                    window.set(submitted++, pool.submit(() -> parser.parse(input)));
+                }
+
+                Path input = inputs.get(i);
+                try {
+                    ExcelTable table = window.get(i).get();
+                    window.set(i, null); //release parsed document
+                    consumer.accept(input, table);
+                    summary.success(input, table.rowCount());
+                } catch (ExecutionException e) {
+                    summary.failure(input, e.getCause());
+                } catch (IOException | RuntimeException e) {
+                    summary.failure(input, e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            summary.failure(null, e);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+
+    private static String xlsxName(Path input) {
+        String name = input.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return (dot > 0 ? name.substring(0, dot) : name) + ".xlsx";
+    }
+
+
+    /**
+     * Resolves HTML files, directories and glob patterns into sorted list of files
+     *
+     * @param inputs - command line inputs
+     * @return HTML files
+     * @throws IOException - if directory could not be read
+     */
+    public static List<Path> resolveInputs(List<String> inputs) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (String input : inputs) {
+            if (isGlob(input)) {
+                files.addAll(glob(input));
+            } else {
+                Path path = Paths.get(input);
+                if (Files.isDirectory(path)) {
+                    files.addAll(glob(path.resolve("*.html").toString()));
+                } else {
+                    files.add(path);
+                }
+            }
+        }
+        return files;
+    }
+
+
+    private static boolean isGlob(String input) {
+        return input.contains("*") || input.contains("?") || input.contains("[") || input.contains("{");
+    }
+
+
+    /**
+     * Finds files matching the pattern, walking from the longest directory prefix without wildcards
+     */
+    private static List<Path> glob(String pattern) throws IOException {
+        String normalized = pattern.replace(File.separatorChar, '/');
+        int wildcard = normalized.length();
+        for (char c : new char[]{'*', '?', '[', '{'}) {
+            int idx = normalized.indexOf(c);
+            if (idx != -1) wildcard = Math.min(wildcard, idx);
+        }
+        int slash = normalized.lastIndexOf('/', wildcard);
+        Path base = Paths.get(slash == -1 ? "." : (slash == 0 ? "/" : normalized.substring(0, slash)));
+        String relative = normalized.substring(slash + 1);
+
+        if (!Files.isDirectory(base)) return Collections.emptyList();
+
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + relative);
+        try (Stream<Path> paths = Files.walk(base)) {
+            return paths.filter(Files::isRegularFile)
+                    .filter(path -> matcher.matches(base.relativize(path)))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+
+    /**
+     * Parses HTML file into table
+     */
+    private interface Parser {
+        ExcelTable parse(Path input) throws IOException;
+    }
+
+
+    /**
+     * Consumes parsed table (in the order of inputs)
+     */
+    private interface Consumer {
+        void accept(Path input, ExcelTable table) throws IOException;
+    }
+
+
+    public static void main(String[] args) throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int maxInFlight = -1;
+        HTMLTableService.ParseMode parseMode = HTMLTableService.ParseMode.DOM;
+        Path out = null;
+        Path merge = null;
+        Path cache = null;
+        Path store = null;
+        Path metrics = null;
+        int hotColumns = 0;
+        Path watch = null;
+        long quietMillis = DEFAULT_QUIET_MILLIS;
+        List<String> inputs = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--max-in-flight":
+                        maxInFlight = Integer.parseInt(args[++i]);
+                        break;
+                    case "--streaming":
+                        parseMode = HTMLTableService.ParseMode.STREAMING;
+                        break;
+                    case "--parallel":
+                        parseMode = HTMLTableService.ParseMode.PARALLEL;
+                        break;
+                    case "--out":
+                        out = Paths.get(args[++i]);
+                        break;
+                    case "--cache":
+                        cache = Paths.get(args[++i]);
+                        break;
+                    case "--hot-columns":
+                        hotColumns = Integer.parseInt(args[++i]);
+                        break;
+                    case "--metrics":
+                        metrics = Paths.get(args[++i]);
+                        break;
+                    case "--store":
+                        store = Paths.get(args[++i]);
+                        break;
+                    case "--merge":
+                        merge = Paths.get(args[++i]);
+                        break;
+                    case "--watch":
+                        watch = Paths.get(args[++i]);
+                        break;
+                    case "--quiet":
+                        quietMillis = Long.parseLong(args[++i]);
+                        break;
+                    default:
+                        inputs.add(args[i]);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        boolean invalid = watch != null
+                ? merge == null || out != null || store != null || quietMillis < 0 || quietMillis > MAX_DELAY_MILLIS
+                : (out == null) == (merge == null && store == null) || inputs.isEmpty();
+        if (invalid) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        BatchConverter converter = new BatchConverter(threads, maxInFlight == -1 ? threads * 2 : maxInFlight, parseMode,
+                cache == null ? null : new SnapshotCache(cache, SnapshotCache.DEFAULT_MAX_BYTES), hotColumns);
+        List<Path> files = resolveInputs(inputs);
+
+        if (watch != null) {
+            watch(converter, files, watch, merge, quietMillis, metrics);
+            return;
+        }
+
+        BatchSummary summary;
+        if (out != null) {
+            summary = converter.convert(files, out);
+        } else if (store != null) {
+            summary = converter.mergeIntoStore(files, store, merge);
+        } else {
+            summary = converter.merge(files, merge);
+        }
+        summary.print(System.out);
+
+        if (metrics != null) {
+            Metrics.write(metrics);
+        } else {
+            Metrics.writeFile();
+        }
+
+        if (summary.getFailed() > 0) System.exit(1);
+    }
+
+
+    /**
+     * Merges inputs, then merges files arriving to the directory until the process is stopped
+     * Metrics are written after each batch.
+     */
+    private static void watch(BatchConverter converter, List<Path> files, Path directory, Path target,
+                              long quietMillis, Path metrics) throws IOException {
+        //daemon is started first, so files arriving while inputs are merged are not missed
+        WatchDaemon daemon = new WatchDaemon(directory, target, converter, quietMillis, MAX_DELAY_MILLIS,
+                new WatchDaemon.Listener() {
+                    @Override
+                    public void merged(List<Path> batch, BatchSummary summary) {
+                        System.out.println(String.format("Merged %d files from '%s'", batch.size(), directory));
+                        summary.print(System.out);
+                        try {
+                            if (metrics != null) {
+                                Metrics.write(metrics);
+                            } else {
+                                Metrics.writeFile();
+                            }
+                        } catch (IOException e) {
+                            System.err.println("Metrics could not be written: " + e.getMessage());
+                        }
+                    }
+
+                    @Override
+                    public void failed(List<Path> batch, IOException error) {
+                        System.err.println(String.format("Workbook '%s' could not be updated: %s", target,
+                                error.getMessage()));
+                    }
+                });
+
+        if (!files.isEmpty()) converter.merge(files, target).print(System.out);
+
+        Thread main = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                daemon.close(); //pending batch is merged by run()
+                main.join();
+            } catch (IOException | InterruptedException e) {
+                //process is exiting
+            }
+        }));
+
+        try {
+            daemon.run();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
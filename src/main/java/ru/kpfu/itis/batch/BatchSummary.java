@@ -0,0 +1,89 @@
+package ru.kpfu.itis.batch;
+
+import com.google.common.base.Throwables;
+
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Throughput and errors of one batch run
+ * Updated by the consumer thread only.
+ */
+public final class BatchSummary {
+
+    private final long startNanos = System.nanoTime();
+    private long elapsedNanos;
+
+    private int succeeded;
+    private long rows;
+    private long bytes;
+    private final List<String> errors = new ArrayList<>();
+
+
+    void success(Path input, int rowCount) {
+        succeeded++;
+        rows += rowCount;
+        try {
+            bytes += Files.size(input);
+        } catch (Exception ignored) {
+            //size is used for statistics only
+        }
+    }
+
+
+    void failure(Path input, Throwable cause) {
+        //pool wraps checked exceptions, report the original one
+        errors.add(String.format("%s: %s", input == null ? "<batch>" : input, Throwables.getRootCause(cause)));
+    }
+
+
+    void finish() {
+        elapsedNanos = System.nanoTime() - startNanos;
+    }
+
+
+    public int getSucceeded() {
+        return succeeded;
+    }
+
+
+    public int getFailed() {
+        return errors.size();
+    }
+
+
+    public long getRows() {
+        return rows;
+    }
+
+
+    public List<String> getErrors() {
+        return Collections.unmodifiableList(errors);
+    }
+
+
+    /**
+     * Prints summary
+     *
+     * @param out - stream to print to
+     */
+    public void print(PrintStream out) {
+        double seconds = Math.max(elapsedNanos, 1) / 1e9;
+
+        out.println("====== batch summary =======");
+        out.println(String.format("Files - %d ok, %d failed", succeeded, errors.size()));
+        out.println(String.format("Rows - %d", rows));
+        out.println(String.format("Time - %.2f s", seconds));
+        out.println(String.format("Throughput - %.1f files/s, %.0f rows/s, %.2f MB/s",
+                succeeded / seconds, rows / seconds, bytes / seconds / (1024 * 1024)));
+
+        if (!errors.isEmpty()) {
+            out.println("====== errors =======");
+            errors.forEach(out::println);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package ru.kpfu.itis.batch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches directory for new HTML files and merges them into the history workbook
+ * Files arriving close together are coalesced: batch is merged and the workbook is written once
+ * when no file has arrived for quietMillis (or maxDelayMillis after the first file of the batch).
+ * Files of a batch are merged in the order of modification time, then name.
+ * A file is merged again only if it is modified after it was merged. Files which exist when
+ * the daemon starts are not merged. If the workbook could not be read or written (e.g. it is open
+ * in Excel), the batch is kept and retried after maxDelayMillis.
+ */
+public final class WatchDaemon implements Closeable {
+
+    private static final String HTML_SUFFIX = ".html";
+
+
+    /**
+     * Receives result of each batch, is called on the daemon thread
+     */
+    public interface Listener {
+
+        /**
+         * Batch is merged and the workbook is written
+         *
+         * @param files   - merged files in the order of merge
+         * @param summary - summary of the batch
+         */
+        void merged(List<Path> files, BatchSummary summary);
+
+
+        /**
+         * Workbook could not be read or written, batch is retried after maxDelayMillis
+         *
+         * @param files - files of the batch
+         * @param error - cause
+         */
+        void failed(List<Path> files, IOException error);
+    }
+
+
+    private final Path directory;
+    private final Path target;
+    private final BatchConverter converter;
+    private final long quietMillis;
+    private final long maxDelayMillis;
+    private final Listener listener;
+
+    private final WatchService watcher;
+    private final Map<Path, FileTime> merged = new HashMap<>(); //file -> modification time when it was merged
+
+
+    /**
+     * Constructor, starts watching the directory
+     *
+     * @param directory      - directory to be watched
+     * @param target         - history workbook
+     * @param converter      - converter which merges batches
+     * @param quietMillis    - batch is merged when no file has arrived for this time
+     * @param maxDelayMillis - batch is merged not later than this time after its first file
+     * @param listener       - receiver of batch results
+     * @throws IOException - if directory could not be watched
+     */
+    public WatchDaemon(Path directory, Path target, BatchConverter converter, long quietMillis, long maxDelayMillis,
+                       Listener listener) throws IOException {
+        if (quietMillis < 0 || maxDelayMillis < quietMillis) {
+            throw new IllegalArgumentException(String.format("Invalid delays: quiet %d ms, max %d ms",
+                    quietMillis, maxDelayMillis));
+        }
+        this.directory = directory;
+        this.target = target;
+        this.converter = converter;
+        this.quietMillis = quietMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.listener = listener;
+
+        this.watcher = directory.getFileSystem().newWatchService();
+        directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        for (Path file : listHtml()) {
+            merged.put(file, modified(file)); //existing files are not merged
+        }
+    }
+
+
+    /**
+     * Runs until close() is called, the thread is interrupted or the directory is deleted
+     * Pending batch is merged before exit if the daemon was closed.
+     *
+     * @throws IOException          - if the directory could not be listed
+     * @throws InterruptedException - if the thread was interrupted
+     */
+    public void run() throws IOException, InterruptedException {
+        Set<Path> pending = new LinkedHashSet<>();
+        long first = 0;
+        long last = 0;
+
+        try {
+            while (true) {
+                WatchKey key;
+                if (pending.isEmpty()) {
+                    key = watcher.take();
+                } else {
+                    long wait = Math.min(last + quietMillis, first + maxDelayMillis) - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        if (merge(pending)) {
+                            pending.clear();
+                        } else {
+                            first = System.currentTimeMillis(); //batch is retried after maxDelayMillis
+                            last = first + maxDelayMillis - quietMillis;
+                        }
+                        continue;
+                    }
+                    key = watcher.poll(wait, TimeUnit.MILLISECONDS);
+                    if (key == null) continue;
+                }
+
+                boolean wasEmpty = pending.isEmpty();
+                boolean changed = false; //file is created or is still being written
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        pending.addAll(listHtml()); //events are lost, unmerged files are found by time
+                        changed = true;
+                    } else {
+                        Path file = directory.resolve((Path) event.context());
+                        if (isHtml(file)) {
+                            pending.add(file);
+                            changed = true;
+                        }
+                    }
+                }
+                if (changed) {
+                    last = System.currentTimeMillis();
+                    if (wasEmpty) first = last;
+                }
+                if (!key.reset()) break; //directory is not accessible anymore
+            }
+        } catch (ClosedWatchServiceException e) {
+            //closed, pending files are merged below
+        }
+        if (!pending.isEmpty()) merge(pending);
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        watcher.close();
+    }
+
+
+    /**
+     * Merges files which are new or modified after they were merged, workbook is written once
+     *
+     * @return false if the workbook could not be read or written
+     */
+    private boolean merge(Set<Path> pending) throws IOException {
+        List<Path> files = new ArrayList<>();
+        Map<Path, FileTime> times = new HashMap<>();
+        for (Path file : pending) {
+            if (!Files.isRegularFile(file)) continue;
+            FileTime time = modified(file);
+            if (time.equals(merged.get(file))) continue;
+            times.put(file, time);
+            files.add(file);
+        }
+        if (files.isEmpty()) return true;
+
+        files.sort(Comparator.comparing((Path file) -> times.get(file)).thenComparing(Path::getFileName));
+        BatchSummary summary;
+        try {
+            summary = converter.merge(files, target);
+        } catch (IOException e) {
+            listener.failed(files, e);
+            return false;
+        }
+        merged.putAll(times); //files which could not be parsed are retried only if they are modified
+        listener.merged(files, summary);
+        return true;
+    }
+
+
+    private List<Path> listHtml() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path file : stream) {
+                if (isHtml(file) && Files.isRegularFile(file)) files.add(file);
+            }
+        }
+        return files;
+    }
+
+
+    private static boolean isHtml(Path file) {
+        return file.getFileName().toString().toLowerCase().endsWith(HTML_SUFFIX);
+    }
+
+
+    private static FileTime modified(Path file) throws IOException {
+        return Files.getLastModifiedTime(file);
+    }
+}
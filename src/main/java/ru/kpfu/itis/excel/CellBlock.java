@@ -0,0 +1,125 @@
+package ru.kpfu.itis.excel;
+
+import org.apache.poi.ss.usermodel.CellType;
+
+import java.util.Arrays;
+
+import static org.apache.poi.ss.usermodel.CellType.*;
+
+/**
+ * First 3 columns of the sheet (rows as they are), stored by columns in primitive arrays
+ * Each cell is a type code, a number and a string reference, cells which were not set are blank.
+ * Cells are copied in and out through CellCursor, no object is created per cell.
+ */
+public final class CellBlock {
+
+    /**
+     * Count of columns in the block
+     **/
+    public static final int COLUMNS = 3;
+
+    private static final CellType[] TYPES = CellType.values();
+
+    private byte[] types; //CellType ordinal + 1, 0 - blank
+    private double[] numbers;
+    private String[] strings;
+    private int rows;
+
+
+    /**
+     * Constructor
+     * @param expectedRows - expected rows count
+     */
+    public CellBlock(int expectedRows) {
+        int capacity = Math.max(expectedRows, 0) * COLUMNS;
+        this.types = new byte[capacity];
+        this.numbers = new double[capacity];
+        this.strings = new String[capacity];
+    }
+
+
+    /**
+     * Returns rows count (index of the last set row + 1)
+     * @return rows count
+     */
+    public int rowCount() {
+        return rows;
+    }
+
+
+    /**
+     * Copies cell into the block (missing cell is stored as blank)
+     *
+     * @param row    - row index
+     * @param column - column index (0 ... COLUMNS - 1)
+     * @param cell   - cell value
+     */
+    void set(int row, int column, CellCursor cell) {
+        int idx = index(row, column);
+        if (idx >= types.length) grow(idx);
+        rows = Math.max(rows, row + 1);
+
+        CellType type = cell.getCellType();
+        types[idx] = (byte) (type.ordinal() + 1);
+        switch (type) {
+            case STRING:
+            case FORMULA:
+                strings[idx] = cell.getString();
+                break;
+            case BLANK:
+                strings[idx] = null;
+                break;
+            default:
+                numbers[idx] = cell.getNumber();
+                break;
+        }
+    }
+
+
+    /**
+     * Moves cursor to the cell of the block
+     *
+     * @param row    - row index
+     * @param column - column index (0 ... COLUMNS - 1)
+     * @param cell   - cursor to be filled
+     */
+    void get(int row, int column, CellCursor cell) {
+        int idx = index(row, column);
+        CellType type = idx < types.length && types[idx] != 0 ? TYPES[types[idx] - 1] : BLANK;
+        switch (type) {
+            case STRING:
+            case FORMULA:
+                cell.setString(type, strings[idx]);
+                break;
+            case NUMERIC:
+                cell.setNumber(numbers[idx]);
+                break;
+            case BOOLEAN:
+                cell.setBoolean(numbers[idx] != 0);
+                break;
+            case ERROR:
+                cell.setError((byte) numbers[idx]);
+                break;
+            default:
+                cell.setBlank();
+                break;
+        }
+    }
+
+
+    private static int index(int row, int column) {
+        if (column < 0 || column >= COLUMNS) {
+            throw new IndexOutOfBoundsException(String.format("Index %d is out of bounds. [ %d ]", column, COLUMNS));
+        }
+        return row * COLUMNS + column;
+    }
+
+
+    private void grow(int idx) {
+        int capacity = Math.max(types.length, 16 * COLUMNS);
+        while (capacity <= idx) capacity += capacity >> 1;
+        types = Arrays.copyOf(types, capacity);
+        numbers = Arrays.copyOf(numbers, capacity);
+        strings = Arrays.copyOf(strings, capacity);
+    }
+}
@@ -0,0 +1,223 @@
+package ru.kpfu.itis.excel;
+
+import com.google.common.math.DoubleMath;
+import com.google.common.primitives.Doubles;
+import org.apache.poi.ss.usermodel.CellType;
+import ru.kpfu.itis.table.Numbers;
+
+import static org.apache.poi.ss.usermodel.CellType.*;
+
+/**
+ * Reusable cell value
+ * Holds one cell at a time in primitive fields (type, number, boolean, error code) and a string reference,
+ * so cells are read and written without allocation per cell. Text of inline strings and formulas
+ * is kept in a reused buffer and is converted to String only when it is requested.
+ * Cursor is not thread-safe, values are valid until the cursor is moved to the next cell.
+ */
+public final class CellCursor {
+
+    private static final String BLANK_VALUE = "";
+
+
+    /**
+     * Cell value
+     * type - null if cell is missing
+     * number - numeric value, 1 / 0 for booleans, code of errors
+     * string - string value (null - value is in 'text')
+     **/
+    private CellType type;
+    private double number;
+    private boolean integer;
+    private String string;
+    private final StringBuilder text = new StringBuilder();
+
+
+    /**
+     * Creates cursor positioned on a missing cell
+     */
+    public CellCursor() {
+        clear();
+    }
+
+
+    /**
+     * Checks if the cell is not present in the sheet
+     * @return true if there is no cell
+     */
+    public boolean isMissing() {
+        return type == null;
+    }
+
+
+    /**
+     * Returns type of the cell, BLANK for missing cells
+     * @return cell type
+     */
+    public CellType getCellType() {
+        return type == null ? BLANK : type;
+    }
+
+
+    public double getNumber() {
+        return number;
+    }
+
+
+    /**
+     * Returns numeric value as int (as (int) cast does)
+     * @return int value
+     */
+    public int getInt() {
+        return (int) number;
+    }
+
+
+    /**
+     * Checks if numeric value has no fractional part
+     * @return true for integer numbers
+     */
+    public boolean isInteger() {
+        return integer;
+    }
+
+
+    public boolean getBoolean() {
+        return number != 0;
+    }
+
+
+    public byte getError() {
+        return (byte) number;
+    }
+
+
+    /**
+     * Returns value as string (numbers as Double.toString, booleans as "true" / "false", blank as "")
+     * Strings which were read as shared strings are returned without copying.
+     * @return string value
+     */
+    public String getString() {
+        switch (getCellType()) {
+            case NUMERIC:
+                return Double.toString(number);
+            case BOOLEAN:
+                return Boolean.toString(getBoolean());
+            case ERROR:
+                return Byte.toString(getError());
+            case BLANK:
+                return string != null ? string : BLANK_VALUE;
+            default:
+                if (string == null) string = text.toString(); //cached until the cursor is moved
+                return string;
+        }
+    }
+
+
+    /**
+     * Compares string value without creating String for text buffers
+     * @param value - string to be compared
+     * @return true if getString() equals value
+     */
+    public boolean contentEquals(String value) {
+        if (string == null && (type == STRING || type == FORMULA)) return value.contentEquals(text);
+        return getString().equals(value);
+    }
+
+
+    /**
+     * Moves cursor to a missing cell
+     */
+    void clear() {
+        type = null;
+        number = 0;
+        integer = false;
+        string = null;
+        text.setLength(0);
+    }
+
+
+    void setBlank() {
+        clear();
+        type = BLANK;
+    }
+
+
+    void setNumber(double value) {
+        clear();
+        type = NUMERIC;
+        number = value;
+        integer = DoubleMath.isMathematicalInteger(value);
+    }
+
+
+    void setInt(int value) {
+        clear();
+        type = NUMERIC;
+        number = value;
+        integer = true;
+    }
+
+
+    void setBoolean(boolean value) {
+        clear();
+        type = BOOLEAN;
+        number = value ? 1 : 0;
+    }
+
+
+    void setError(byte code) {
+        clear();
+        type = ERROR;
+        number = code;
+    }
+
+
+    /**
+     * Sets string (STRING) or formula text (FORMULA) by reference
+     */
+    void setString(CellType type, String value) {
+        clear();
+        this.type = type;
+        this.string = value;
+    }
+
+
+    /**
+     * Sets string (STRING) or formula text (FORMULA) copying characters to the reused buffer
+     */
+    void setText(CellType type, CharSequence value) {
+        clear();
+        this.type = type;
+        text.append(value);
+    }
+
+
+    /**
+     * Sets value of a history cell: integers and decimals as NUMERIC, other values as STRING
+     * (integers in canonical form are parsed without allocation, see Numbers.parseInt)
+     *
+     * @param value   - cell value
+     * @param numeric - false if the value is always written as string
+     */
+    void setValue(String value, boolean numeric) {
+        if (numeric && value != null && !value.isEmpty()) { //blank cells are not parsed
+            long parsed = Numbers.parseInt(value);
+            if (parsed != Numbers.NOT_INT) {
+                setInt((int) parsed);
+                return;
+            }
+            Double d = Doubles.tryParse(value);
+            if (d != null) {
+                setNumber(d);
+                return;
+            }
+        }
+        setString(STRING, value);
+    }
+
+
+    @Override
+    public String toString() {
+        return String.format("{ %s, %s, %b }", getString(), getCellType(), integer);
+    }
+}
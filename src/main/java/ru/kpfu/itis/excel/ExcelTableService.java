@@ -1,24 +1,38 @@
 package ru.kpfu.itis.excel;
 
-import com.google.common.math.DoubleMath;
-import com.google.common.primitives.Doubles;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.poi.openxml4j.util.ZipSecureFile;
 import org.apache.poi.ss.usermodel.*;
 import org.apache.poi.ss.usermodel.CellType;
-import org.apache.poi.xssf.usermodel.XSSFCellStyle;
-import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.apache.poi.xssf.usermodel.XSSFWorkbookType;
 import ru.kpfu.itis.html.HTMLTableService;
+import ru.kpfu.itis.metrics.Metrics;
+import ru.kpfu.itis.metrics.Stage;
 import ru.kpfu.itis.table.ExcelTable;
+import ru.kpfu.itis.table.StringDictionary;
 
 import java.io.BufferedOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Objects;
-import java.util.function.Consumer;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
+import java.util.zip.ZipFile;
 
 import static org.apache.poi.ss.usermodel.CellType.*;
 
@@ -30,90 +44,161 @@ public final class ExcelTableService {
 
     private static final String BLANK_VALUE = "";
 
+
+    /**
+     * Writer modes
+     * IN_MEMORY - whole workbook is built in memory (XSSF) before writing
+     * DEFAULT_ROW_WINDOW - default count of rows kept in memory by streaming (SXSSF) writer
+     **/
+    public static final int IN_MEMORY = 0;
+    public static final int DEFAULT_ROW_WINDOW = SXSSFWorkbook.DEFAULT_WINDOW_SIZE;
+
+
+    /**
+     * Threads of background reads (readTablesAsync), reading is blocking I/O so the common pool is not used
+     **/
+    private static final ExecutorService READERS = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("workbook-reader-%d").build());
+
+
+    /**
+     * Count of rows kept in memory while writing, older rows are flushed to a temp file
+     * IN_MEMORY (0) - streaming is disabled
+     **/
+    private final int rowAccessWindowSize;
+
+
+    /**
+     * Dictionary of string cells of read tables, null - each table has its own dictionary
+     **/
+    private final StringDictionary dictionary;
+
+
+    /**
+     * Default constructor
+     * Creates service with in-memory writer
+     */
     public ExcelTableService() {
+        this(IN_MEMORY);
+    }
+
+
+    /**
+     * Constructor
+     * @param rowAccessWindowSize - rows kept in memory by writers, IN_MEMORY (0) disables streaming
+     */
+    public ExcelTableService(int rowAccessWindowSize) {
+        this(rowAccessWindowSize, null);
+    }
+
+
+    /**
+     * Constructor
+     * @param rowAccessWindowSize - rows kept in memory by writers, IN_MEMORY (0) disables streaming
+     * @param dictionary          - dictionary of string cells of read tables (null - each table has its own one),
+     *                            it is never cleared, so it should be used for one run only
+     */
+    public ExcelTableService(int rowAccessWindowSize, StringDictionary dictionary) {
+        if (rowAccessWindowSize < 0) {
+            throw new IllegalArgumentException(String.format("Row window size is negative: %d", rowAccessWindowSize));
+        }
+        this.rowAccessWindowSize = rowAccessWindowSize;
+        this.dictionary = dictionary;
         ZipSecureFile.setMinInflateRatio(1E-5);
     }
 
-    public void writeTwoTables(CellData[][] tableLeft, ExcelTable tableRight, String path) throws IOException {
+    public void writeTwoTables(CellBlock tableLeft, ExcelTable tableRight, String path) throws IOException {
+        long start = Metrics.start();
 
-        XSSFWorkbook workbook = new XSSFWorkbook(XSSFWorkbookType.XLSX);
+        Workbook workbook = createWorkbook();
 
-        XSSFSheet sheet = workbook.createSheet();
+        Sheet sheet = workbook.createSheet();
 
-        int rightRowsMax = tableRight.rowCount();
+        int leftRows = tableLeft.rowCount();
+        int rightRows = tableRight.rowCount();
+        int rows = Math.max(leftRows, rightRows);
+        CellCursor cursor = new CellCursor(); //reused for all cells
+        CellStyle[] styles = new StyleRegistry(workbook).columnStyles(3 + tableRight.columnCount());
 
-        tableRight.rowKeys().forEach(new Consumer<String>() {
-            private int rowIdx = 0;
+        for (int rowIdx = 0; rowIdx < rows; rowIdx++) {
+            Row row = sheet.createRow(rowIdx);
 
-            @Override
-            public void accept(String rowKey) {
+            //rows added by merge have no left block cells
+            for (int i = 0; i < CellBlock.COLUMNS && rowIdx < leftRows; i++) {
+                tableLeft.get(rowIdx, i, cursor); //write rowIdx row, 3 columns (0 ... 2)
+                Cell cell = row.createCell(i);
+                cell.setCellStyle(styles[i]);
+                writeCellValue1(cell, cursor);
+            }
 
-                Row row = sheet.createRow(rowIdx);
+            for (int i = 0; i < tableRight.columnCount() && rowIdx < rightRows; i++) {
+                setHistoryValue(cursor, tableRight, rowIdx, i, i >= 3);
+                writeHistoryCell(row, i + 3, cursor, styles[i + 3]);
+            }
+        }
 
-                for (int i = 0; i < 3; i++) {
-                    Cell cell = row.createCell(i);
-                    writeCellValue1(cell, tableLeft[rowIdx][i]); //write rowIdx row, 3 columns (0 ... 2)
-                }
+        setUpColumnWidth(sheet, 3 + tableRight.columnCount()); //left block is always 3 columns, it may be empty
 
-                for (int i = 0; i < tableRight.columnCount(); i++) {
-                    CellData cellData = getCellData(tableRight.getValue(rowKey, tableRight.getColumnKey(i)), i, 3);
-                    Cell cell = row.createCell(i + 3, cellData.getCellType());
-                    if (cellData.getCellType() == NUMERIC) {
-                        if (cellData.isInteger()) {
-                            cell.setCellValue(cellData.getIntData());
-                        } else {
-                            cell.setCellValue(cellData.getDoubleData());
-                        }
-                    } else {
-                        cell.setCellValue(cellData.getStringValue());
-                    }
-                }
+        save(workbook, path);
 
-                rowIdx++;
+        Metrics.stop(Stage.WRITE_TWO_TABLES, start, rows, (long) leftRows * CellBlock.COLUMNS
+                + (long) rightRows * tableRight.columnCount(), Metrics.fileSize(path));
+    }
 
-                if (rowIdx == rightRowsMax && rowIdx < tableLeft.length) {
-                    for (int i = rowIdx; i < tableLeft.length; i++) {
-                        row = sheet.createRow(i);
-                        for (int j = 0; j < 3; j++) {
-                            Cell cell = row.createCell(j);
-                            writeCellValue1(cell, tableLeft[i][j]);
-                        }
-                    }
-                }
 
-            }
-        });
+    /**
+     * Creates empty workbook
+     * @return SXSSFWorkbook if streaming is enabled, XSSFWorkbook otherwise
+     */
+    private Workbook createWorkbook() {
+        XSSFWorkbook workbook = new XSSFWorkbook(XSSFWorkbookType.XLSX);
+        if (rowAccessWindowSize == IN_MEMORY) {
+            return workbook;
+        }
+        //compressed temp files, shared strings table as XSSFWorkbook writes
+        return new SXSSFWorkbook(workbook, rowAccessWindowSize, true, true);
+    }
 
-        setUpColumnWidth(sheet, tableLeft[0].length + tableRight.columnCount());
 
+    /**
+     * Writes workbook to file and releases it (including temp files)
+     *
+     * @param workbook - workbook to be written
+     * @param path     - output file path
+     * @throws IOException - if file could not be written
+     */
+    private void save(Workbook workbook, String path) throws IOException {
         try (BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(path, false))) {
             workbook.write(out); //write to file all workbook
         } finally {
+            if (workbook instanceof SXSSFWorkbook) {
+                ((SXSSFWorkbook) workbook).dispose(); //delete temp files
+            }
             close(workbook);
         }
     }
 
 
-    private void writeCellValue1(Cell cell, CellData cellData) {
+    private void writeCellValue1(Cell cell, CellCursor cellData) {
         cell.setCellType(cellData.getCellType()); // set cell type
         switch (cellData.getCellType()) {
             case STRING:
-                cell.setCellValue(cellData.getStringValue());
+                cell.setCellValue(cellData.getString());
                 break;
             case NUMERIC:
-                cell.setCellValue(cellData.getDoubleData());
+                cell.setCellValue(cellData.getNumber());
                 break;
             case FORMULA:
-                cell.setCellFormula(cellData.getStringValue());
+                cell.setCellFormula(cellData.getString());
                 break;
             case BLANK:
                 cell.setCellValue(BLANK_VALUE);
                 break;
             case BOOLEAN:
-                cell.setCellValue(cellData.getBooleanValue());
+                cell.setCellValue(cellData.getBoolean());
                 break;
             case ERROR:
-                cell.setCellErrorValue(cellData.getErrorValue());
+                cell.setCellErrorValue(cellData.getError());
                 break;
             default:
                 throw new IllegalArgumentException("There is no such type of cell");
@@ -122,83 +207,46 @@ public final class ExcelTableService {
 
 
     //reads first table
-    public CellData[][] readTable1(String path) throws IOException {
-        XSSFWorkbook workbook = new XSSFWorkbook(path);
-        XSSFSheet sheet = workbook.getSheetAt(0);
-        if (sheet == null) throw new IllegalArgumentException("There is no sheets in the document");
-        final int rows = sheet.getLastRowNum() + 1; //forgot +1 !!!
-        CellData[][] cellData = new CellData[rows][3];
-        for (int i = 0; i < rows; i++) {
-
-            Row row = sheet.getRow(i);
-
-            for (int k = 0; k < 3; k++) {
-                Cell cell = row.getCell(k);
-                cellData[i][k] = readCellValue(cell);
-            }
-        }
-        close(workbook);
-        return cellData;
+    public CellBlock readTable1(String path) throws IOException {
+        long start = Metrics.start();
+        LeftBlockHandler handler = new LeftBlockHandler();
+        SheetEventReader.read(path, handler, column -> column < CellBlock.COLUMNS); //history is not decoded
+        CellBlock cells = handler.getCells();
+        Metrics.stop(Stage.READ_TABLE1, start, cells.rowCount(), (long) cells.rowCount() * CellBlock.COLUMNS,
+                Metrics.fileSize(path));
+        return cells;
     }
 
 
     //reads second table
     public ExcelTable readTable2(String path) throws IOException {
-        XSSFWorkbook workbook = new XSSFWorkbook(path);
-        XSSFSheet sheet = workbook.getSheetAt(0); //get first sheet
-        if (sheet == null) throw new IllegalArgumentException("There is no sheets in the document");
-        final int rows = sheet.getLastRowNum() + 1;
-        final int columns = sheet.getRow(0).getLastCellNum(); //read all columns, not only 4
-        ExcelTable table = new ExcelTable(rows, columns - 3);
-        sheet.forEach(row -> {
-            List<String> values = new ArrayList<>(columns - 3); //cell values of row
-            for (int k = 3, colIdx = k - 3; k < columns; k++, colIdx++) {
-                Cell cell = row.getCell(k);
-                CellData value = readCellValue(cell);
-                if (k == 3 && value.getCellType() == BLANK) return;
-                if (value.isInteger() && k >= 6) {
-                    values.add(Integer.toString(value.getIntData()));
-                } else if (value.isInteger() && k == 5) {
-                    values.add(Integer.toString(value.getIntData()));
-                } else {
-                    values.add(value.getStringValue());
-                }
-            }
-            table.addRow(values.get(0), values.toArray(new String[0])); //in each row the key is data-id (first cell)
-        });
-        close(workbook);
-        return table;
+        return readTable2(path, (int[]) null);
     }
 
 
-    private CellData readCellValue(Cell cell) {
-        if (cell == null) return new CellData(BLANK_VALUE, BLANK);
-        switch (cell.getCellTypeEnum()) {
-            case STRING:
-                return new CellData(cell.getStringCellValue(), STRING);
-            case NUMERIC:
-                if (isInteger(cell.getNumericCellValue())) {
-                    return new CellData(cell.getNumericCellValue(), NUMERIC, true);
-                }
-                return new CellData(cell.getNumericCellValue(), NUMERIC);
-            case BLANK:
-                return new CellData(BLANK_VALUE, BLANK);
-            case BOOLEAN:
-                return new CellData(cell.getBooleanCellValue(), BOOLEAN);
-            case FORMULA:
-                return new CellData(cell.getCellFormula(), FORMULA);
-            case ERROR:
-                return new CellData(cell.getErrorCellValue(), ERROR);
-            default:
-                throw new IllegalArgumentException("There is no such type of cell");
-        }
+    /**
+     * Reads listed columns of the history table, cells of other columns are not decoded
+     * (e.g. {0, 1, 2, -1} - key columns and the last column, as merge needs them).
+     * Rows are keyed by data-id in any case, header row is read as it is in readTable2(String).
+     *
+     * @param path    - path to xlsx file
+     * @param columns - columns of the history table in the order of the result table
+     *                (0 - data-id, 1 - name, 2 - tone number, 3 ... - history, -1 - the last column, -2 ...)
+     * @return table of the listed columns
+     * @throws IOException              - if file could not be read
+     * @throws IllegalArgumentException - if a column is out of the header row
+     */
+    public ExcelTable readTable2(String path, int... columns) throws IOException {
+        long start = Metrics.start();
+        HistoryTableHandler handler = new HistoryTableHandler(dictionary, columns);
+        SheetEventReader.read(path, handler, handler::isProjected);
+        ExcelTable table = handler.getTable();
+        Metrics.stop(Stage.READ_TABLE2, start, table.rowCount(), (long) table.rowCount() * table.columnCount(),
+                Metrics.fileSize(path));
+        return table;
     }
 
 
-    private boolean isInteger(Double d) {
-        return DoubleMath.isMathematicalInteger(d);
-    }
-
     private void setUpColumnWidth(Sheet sheet, int columns) {
         sheet.setColumnWidth(0, 12 * 256);
         sheet.setColumnWidth(1, 12 * 256);
@@ -226,111 +274,557 @@ public final class ExcelTableService {
     }
 
 
-    public static class CellData {
+    /**
+     * Returns count of cells in the header row, only the header row is parsed
+     *
+     * @param path - path to xlsx file
+     * @return last cell index of the first row + 1 (0 if the sheet is empty)
+     * @throws IOException - if file could not be read
+     */
+    public int readColumnCount(String path) throws IOException {
+        int[] columns = new int[1];
+        SheetEventReader.read(path, new SheetEventReader.RowHandler() {
+            @Override
+            public void startSheet(int expectedRows) { }
+
+            @Override
+            public void row(int rowIndex, CellCursor[] cells, int cellCount) {
+                columns[0] = cellCount;
+                throw new SheetEventReader.StopReading();
+            }
+        }, column -> false); //cells are counted, not decoded
+        return columns[0];
+    }
+
+
+    /**
+     * Returns header row of the history table (data-id, name, tone number and update times),
+     * only the header row is parsed
+     *
+     * @param path - path to xlsx file
+     * @return headers of the history table columns as they are read by readTable2
+     * @throws IOException - if file could not be read
+     */
+    public String[] readHeader(String path) throws IOException {
+        String[][] headers = {new String[0]};
+        SheetEventReader.read(path, new SheetEventReader.RowHandler() {
+            @Override
+            public void startSheet(int expectedRows) { }
+
+            @Override
+            public void row(int rowIndex, CellCursor[] cells, int cellCount) {
+                int first = HistoryTableHandler.KEY_COLUMN;
+                String[] result = new String[Math.max(cellCount - first, 0)];
+                for (int k = first; k < cellCount; k++) {
+                    result[k - first] = historyValue(cells[k], k);
+                }
+                headers[0] = result;
+                throw new SheetEventReader.StopReading();
+            }
+        }, column -> column >= HistoryTableHandler.KEY_COLUMN); //first 3 columns are not decoded
+        return headers[0];
+    }
+
+
+    /**
+     * Reads both tables (first 3 columns and the history table) opening workbook once
+     *
+     * @param path - path to xlsx file
+     * @return both tables of the first sheet
+     * @throws IOException - if file could not be read
+     */
+    public WorkbookTables readTables(String path) throws IOException {
+        return readTables(path, () -> false);
+    }
+
+
+    /**
+     * Reads both tables in background, e.g. while HTML is parsed
+     * Future is completed only when the file is closed: if reading is stopped, it is completed with
+     * CancellationException after that, so the file may be replaced then (see appendTable).
+     *
+     * @param path - path to xlsx file
+     * @param stop - checked before each row, reading is stopped when it returns true
+     * @return future of both tables of the first sheet
+     */
+    public CompletableFuture<WorkbookTables> readTablesAsync(String path, BooleanSupplier stop) {
+        CompletableFuture<WorkbookTables> future = new CompletableFuture<>();
+        READERS.execute(() -> {
+            try {
+                WorkbookTables tables = readTables(path, stop);
+                if (stop.getAsBoolean()) {
+                    future.completeExceptionally(new CancellationException("Reading of '" + path + "' is stopped"));
+                } else {
+                    future.complete(tables);
+                }
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
 
-        private final Object data; //data of cell
-        private final CellType cellType;
-        private boolean isInteger;
 
-        public CellData(Object data, CellType cellType) {
-            this(data, cellType, false);
+    /**
+     * Waits for tables being read by readTablesAsync
+     *
+     * @param future - future returned by readTablesAsync
+     * @return both tables of the first sheet
+     * @throws IOException - if file could not be read
+     */
+    public static WorkbookTables await(CompletableFuture<WorkbookTables> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
         }
+    }
+
+
+    private WorkbookTables readTables(String path, BooleanSupplier stop) throws IOException {
+        long start = Metrics.start();
+        LeftBlockHandler left = new LeftBlockHandler();
+        HistoryTableHandler right = new HistoryTableHandler(dictionary, null);
+
+        SheetEventReader.read(path, new SheetEventReader.RowHandler() {
+            @Override
+            public void startSheet(int expectedRows) {
+                left.startSheet(expectedRows);
+                right.startSheet(expectedRows);
+            }
+
+            @Override
+            public void row(int rowIndex, CellCursor[] cells, int cellCount) {
+                if (stop.getAsBoolean()) throw new SheetEventReader.StopReading();
+                left.row(rowIndex, cells, cellCount);
+                right.row(rowIndex, cells, cellCount);
+            }
+        });
+
+        if (stop.getAsBoolean()) return null;
+
+        CellBlock cells = left.getCells();
+        ExcelTable table = right.getTable();
+        Metrics.stop(Stage.READ_TABLES, start, Math.max(cells.rowCount(), table.rowCount()),
+                (long) cells.rowCount() * CellBlock.COLUMNS + (long) table.rowCount() * table.columnCount(),
+                Metrics.fileSize(path));
+        return new WorkbookTables(cells, table);
+    }
+
+
+    /**
+     * Appends table (last column and new rows) to the history table of the workbook
+     * Only the sheet is patched: cells of the new column are added to existing rows,
+     * new rows are added after the last row, other cells and parts are copied unchanged.
+     * File is replaced atomically. Rows are not re-sorted, new rows stay at the end.
+     *
+     * @param table - table to be appended (data-id, name, tone number, ..., new column)
+     * @param path  - path to xlsx file
+     * @return true if workbook was updated, false if name or tone number of an existing row
+     * has changed (full merge and rewrite is needed then, the file is not modified)
+     * @throws IOException - if file could not be read or written
+     */
+    public boolean appendTable(ExcelTable table, String path) throws IOException {
+        return appendTable(table, path, () -> { });
+    }
+
 
-        public CellData(Object data, CellType cellType, boolean isInteger) {
-            this.data = data;
-            this.cellType = cellType;
-            this.isInteger = isInteger;
+    /**
+     * Appends table to the history table of the workbook (see appendTable(ExcelTable, String))
+     *
+     * @param table   - table to be appended (data-id, name, tone number, ..., new column)
+     * @param path    - path to xlsx file
+     * @param onPatch - called when rows are matched and the file is going to be replaced
+     *                (e.g. to stop background reads of the file, see readTablesAsync)
+     * @return true if workbook was updated, false if name or tone number of an existing row has changed
+     * @throws IOException - if file could not be read or written
+     */
+    public boolean appendTable(ExcelTable table, String path, Runnable onPatch) throws IOException {
+        long start = Metrics.start();
+        AppendHandler handler = new AppendHandler(table);
+        String sheetEntry = SheetEventReader.read(path, handler, AppendHandler::isProjected);
+        if (handler.isKeyChanged()) return false;
+        onPatch.run();
+
+        int[] newRows = handler.getNewRows();
+        SheetPatcher patcher = new SheetPatcher(sheetEntry, handler.getColumn(), table, handler.getRows(),
+                handler.getLastRow(), newRows, 3);
+
+        Path target = Paths.get(path).toAbsolutePath();
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            try (ZipFile source = new ZipFile(target.toFile());
+                 OutputStream out = Files.newOutputStream(temp)) {
+                patcher.patch(source, out);
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        Metrics.stop(Stage.APPEND_TABLE, start, table.rowCount(), handler.getRows().size()
+                + (long) newRows.length * table.columnCount(), Metrics.fileSize(path));
+        return true;
+    }
+
+
+    /**
+     * Tables of the first sheet
+     * left - first 3 columns (rows as they are)
+     * right - history table (columns from 3), rows keyed by data-id
+     */
+    public static final class WorkbookTables {
+
+        private final CellBlock left;
+        private final ExcelTable right;
+
+        public WorkbookTables(CellBlock left, ExcelTable right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        public CellBlock getLeft() {
+            return left;
+        }
+
+        public ExcelTable getRight() {
+            return right;
+        }
+    }
+
+
+    /**
+     * Matches rows of the history table with rows of appended table
+     * Collects sheet rows of matched rows, new rows and checks that key columns are not changed.
+     */
+    private static final class AppendHandler implements SheetEventReader.RowHandler {
+
+        private final ExcelTable table;
+        private final int lastColumn;
+        private final boolean[] matched;
+
+        private final Map<Integer, Integer> rows = new HashMap<>(); //sheet row -> row of appended table
+        private int columns = -1;
+        private int lastRow = -1;
+        private boolean keyChanged;
+
+        AppendHandler(ExcelTable table) {
+            this.table = table;
+            this.lastColumn = table.columnCount() - 1;
+            this.matched = new boolean[table.rowCount()];
         }
 
-        public Object getData() {
-            return data;
+        @Override
+        public void startSheet(int expectedRows) { }
+
+        @Override
+        public void row(int rowIndex, CellCursor[] cells, int cellCount) {
+            lastRow = Math.max(lastRow, rowIndex);
+            if (columns == -1) {
+                if (rowIndex != 0) throw new IllegalArgumentException("There is no header row in the document");
+                columns = cellCount;
+            }
+
+            String key = cellCount > 3 ? historyValue(cells[3], 3) : BLANK_VALUE;
+            if (key.isEmpty()) return;
+
+            int row = table.rowIndex(key);
+            if (row == -1) return; //row is missing in appended table, new cell is blank
+            matched[row] = true;
+
+            for (int k = 4; k < 6; k++) { //name and tone number
+                String expected = Objects.toString(table.getValue(row, k - 3), BLANK_VALUE);
+                if (!(k < cellCount ? historyEquals(cells[k], k, expected) : expected.isEmpty())) {
+                    keyChanged = true;
+                    throw new SheetEventReader.StopReading(); //workbook is not patched, rest is not needed
+                }
+            }
+            rows.put(rowIndex, row); //value of the new column is taken from the table as it is (typed)
         }
 
-        public int getIntData() {
-            return ((Double) data).intValue();
+        /**
+         * Only data-id, name and tone number are compared, history cells are not decoded
+         */
+        static boolean isProjected(int column) {
+            return column >= 3 && column < 6;
         }
 
-        public double getDoubleData() {
-            return (Double) data;
+        boolean isKeyChanged() {
+            return keyChanged;
         }
 
-        public String getStringValue() {
-            return Objects.toString(data, BLANK_VALUE);
+        int getColumn() {
+            if (columns == -1) throw new IllegalArgumentException("There is no rows in the document");
+            return columns;
         }
 
-        public Boolean getBooleanValue() {
-            return (Boolean) data;
+        Map<Integer, Integer> getRows() {
+            return rows;
         }
 
-        public Byte getErrorValue() {
-            return (Byte) data;
+        int getLastRow() {
+            return lastRow;
         }
 
-        public boolean isInteger() {
-            return isInteger;
+        /**
+         * Rows of appended table missing in the sheet (key columns and new column are added, history is blank)
+         */
+        int[] getNewRows() {
+            int[] rows = new int[matched.length];
+            int count = 0;
+            for (int row = 0; row < matched.length; row++) {
+                if (!matched[row]) rows[count++] = row;
+            }
+            return Arrays.copyOf(rows, count);
         }
+    }
+
+
+    /**
+     * Returns value of history table cell as it is read into ExcelTable
+     *
+     * @param cell   - cell of the sheet (missing cell is blank)
+     * @param column - column index in the sheet
+     */
+    private static String historyValue(CellCursor cell, int column) {
+        if (cell.isInteger() && column >= 5) return Integer.toString(cell.getInt());
+        return cell.getString();
+    }
+
+
+    /**
+     * Checks if historyValue(cell, column) equals value, text of the cell is not copied
+     */
+    private static boolean historyEquals(CellCursor cell, int column, String value) {
+        if (cell.isInteger() && column >= 5) return Integer.toString(cell.getInt()).equals(value);
+        return cell.contentEquals(value);
+    }
+
 
+    /**
+     * Collects first 3 columns of the sheet
+     */
+    private static final class LeftBlockHandler implements SheetEventReader.RowHandler {
 
-        public CellType getCellType() {
-            return cellType;
+        private static final CellCursor BLANK_CELL = new CellCursor();
+
+        private CellBlock block = new CellBlock(0);
+
+        @Override
+        public void startSheet(int expectedRows) {
+            block = new CellBlock(expectedRows);
         }
 
         @Override
-        public String toString() {
-            return String.format("{ %s, %s, %b }", data.toString(), cellType, isInteger);
+        public void row(int rowIndex, CellCursor[] cells, int cellCount) {
+            //missing rows and cells are blank
+            for (int k = 0; k < CellBlock.COLUMNS; k++) {
+                block.set(rowIndex, k, k < cellCount ? cells[k] : BLANK_CELL);
+            }
+        }
+
+        CellBlock getCells() {
+            return block;
         }
     }
 
 
-    //writes 3 + 4 columns only, creates new file
-    public void writeTable(ExcelTable excelTable, String path) throws IOException {
-        XSSFWorkbook workbook = new XSSFWorkbook(XSSFWorkbookType.XLSX); //create new workbook
-        XSSFSheet sheet = workbook.createSheet(); //create new sheet with index 0
-
-        int currentRow = 0;
-
-        for (String keyRow : excelTable.rowKeys()) {
-            int columnCount = 3;
-            Row row = sheet.createRow(currentRow++); //increment rowCount
-
-            for (String keyColumn : excelTable.columnKeys()) {
-                CellData cellData = getCellData(excelTable.getValue(keyRow, keyColumn), columnCount, 6);
-                Cell cell = row.createCell(columnCount++, cellData.getCellType()); //increment columnCount
-                if (cellData.getCellType() == NUMERIC) {
-                    if (cellData.isInteger()) {
-                        cell.setCellValue(cellData.getIntData());
-                    } else {
-                        cell.setCellValue(cellData.getDoubleData());
-                    }
+    /**
+     * Collects columns from 3 to the last column of the header row (or projected columns) into ExcelTable
+     * Rows with blank data-id are skipped
+     */
+    private static final class HistoryTableHandler implements SheetEventReader.RowHandler {
+
+        private static final int KEY_COLUMN = 3; //data-id
+
+        private final StringDictionary dictionary;
+        private final int[] projection; //history table columns, null - all columns
+        private ExcelTable table;
+        private int columns = -1; //read all columns of header row, not only 4
+        private int[] sheetColumns; //sheet column of each table column
+        private boolean[] typed; //table columns which integer cells are kept as ints (schema of the table)
+        private boolean[] decoded; //sheet columns which cells are decoded, null - all of them
+        private int expectedRows; //0 if sheet has no dimension
+
+        HistoryTableHandler(StringDictionary dictionary, int[] projection) {
+            this.dictionary = dictionary;
+            this.projection = projection;
+        }
+
+        /**
+         * Header row is decoded whole, then data-id and projected columns only
+         */
+        boolean isProjected(int column) {
+            return decoded == null || column < decoded.length && decoded[column];
+        }
+
+        @Override
+        public void startSheet(int expectedRows) {
+            this.expectedRows = expectedRows;
+        }
+
+        @Override
+        public void row(int rowIndex, CellCursor[] cells, int cellCount) {
+            if (columns == -1) {
+                if (rowIndex != 0) throw new IllegalArgumentException("There is no header row in the document");
+                columns = cellCount;
+                project();
+                table = dictionary == null ? new ExcelTable(expectedRows, sheetColumns.length)
+                        : new ExcelTable(expectedRows, sheetColumns.length, dictionary);
+                typed = new boolean[sheetColumns.length];
+                for (int colIdx = 0; colIdx < typed.length; colIdx++) {
+                    typed[colIdx] = sheetColumns[colIdx] >= 5 && table.isIntColumn(colIdx); //decided once by schema
+                }
+            }
+
+            CellCursor key = KEY_COLUMN < cellCount ? cells[KEY_COLUMN] : LeftBlockHandler.BLANK_CELL;
+            if (key.getCellType() == BLANK) return;
+            int row = table.putRow(historyValue(key, KEY_COLUMN)); //in each row the key is data-id
+            for (int colIdx = 0; colIdx < sheetColumns.length; colIdx++) {
+                int k = sheetColumns[colIdx];
+                CellCursor cell = k < cellCount ? cells[k] : LeftBlockHandler.BLANK_CELL;
+                if (typed[colIdx] && cell.isInteger()) {
+                    table.setInt(row, colIdx, cell.getInt()); //counts are not converted to String and back
                 } else {
-                    cell.setCellValue(cellData.getStringValue());
+                    table.setValue(row, colIdx, historyValue(cell, k));
                 }
+            }
+        }
 
+        ExcelTable getTable() {
+            if (table == null) throw new IllegalArgumentException("There is no rows in the document");
+            return table;
+        }
+
+        /**
+         * Resolves projected columns by column count of the header row
+         */
+        private void project() {
+            int historyColumns = Math.max(columns - KEY_COLUMN, 0);
+            if (projection == null) {
+                sheetColumns = new int[historyColumns];
+                for (int i = 0; i < historyColumns; i++) sheetColumns[i] = KEY_COLUMN + i;
+                return;
+            }
+
+            sheetColumns = new int[projection.length];
+            decoded = new boolean[Math.max(columns, KEY_COLUMN + 1)];
+            decoded[KEY_COLUMN] = true;
+            for (int i = 0; i < projection.length; i++) {
+                int column = projection[i] < 0 ? historyColumns + projection[i] : projection[i];
+                if (column < 0 || column >= historyColumns) {
+                    throw new IllegalArgumentException(String.format("Column %d is out of %d history columns",
+                            projection[i], historyColumns));
+                }
+                sheetColumns[i] = KEY_COLUMN + column;
+                decoded[KEY_COLUMN + column] = true;
             }
         }
-        setUpColumnWidth(sheet, 7);
-        try (BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(path, false))) {
-            workbook.write(out); //write to file all workbook
-        } finally {
-            close(workbook);
+    }
+
+
+    /**
+     * Shared cell styles of one workbook
+     * One style is created per distinct spec (alignment, data format) and is reused by all cells,
+     * so styles.xml holds a few styles whatever the count of cells is (workbook limit is 64000 styles).
+     * Widths are set per column (setUpColumnWidth), they are not part of cell style.
+     */
+    private static final class StyleRegistry {
+
+        private static final int CENTERED_FROM = 5; //columns from tone number are centered
+        private static final String GENERAL_FORMAT = "General";
+
+        private final Workbook workbook;
+        private final Map<String, CellStyle> styles = new HashMap<>();
+
+        StyleRegistry(Workbook workbook) {
+            this.workbook = workbook;
+        }
+
+        CellStyle get(HorizontalAlignment alignment, String format) {
+            String key = alignment + "|" + format;
+            CellStyle style = styles.get(key);
+            if (style == null) {
+                style = workbook.createCellStyle();
+                style.setAlignment(alignment);
+                style.setDataFormat(workbook.createDataFormat().getFormat(format));
+                styles.put(key, style);
+            }
+            return style;
+        }
+
+        /**
+         * Returns style of each column, looked up once per write, not per cell
+         */
+        CellStyle[] columnStyles(int columns) {
+            CellStyle[] result = new CellStyle[columns];
+            for (int column = 0; column < columns; column++) {
+                result[column] = get(column >= CENTERED_FROM ? HorizontalAlignment.CENTER : HorizontalAlignment.LEFT,
+                        GENERAL_FORMAT);
+            }
+            return result;
+        }
+    }
+
+
+    //writes 3 + 4 columns only, creates new file
+    public void writeTable(ExcelTable excelTable, String path) throws IOException {
+        long start = Metrics.start();
+        Workbook workbook = createWorkbook(); //create new workbook
+        Sheet sheet = workbook.createSheet(); //create new sheet with index 0
+
+        CellCursor cursor = new CellCursor(); //reused for all cells
+        CellStyle[] styles = new StyleRegistry(workbook).columnStyles(3 + excelTable.columnCount());
+
+        for (int currentRow = 0; currentRow < excelTable.rowCount(); currentRow++) {
+            Row row = sheet.createRow(currentRow);
+
+            for (int column = 0; column < excelTable.columnCount(); column++) {
+                setHistoryValue(cursor, excelTable, currentRow, column, column + 3 >= 6);
+                writeHistoryCell(row, column + 3, cursor, styles[column + 3]);
+            }
         }
+        setUpColumnWidth(sheet, 7);
+        save(workbook, path);
+        Metrics.stop(Stage.WRITE_TABLE, start, excelTable.rowCount(),
+                (long) excelTable.rowCount() * excelTable.columnCount(), Metrics.fileSize(path));
     }
 
-    //TODO don't work
-    private void setupCell(Cell cell, XSSFWorkbook workbook, int column) {
-        XSSFCellStyle cellStyle = workbook.createCellStyle();
-        cellStyle.setAlignment(HorizontalAlignment.LEFT);
-        if (column >= 5) cellStyle.setAlignment(HorizontalAlignment.CENTER);
-        cell.setCellStyle(cellStyle);
+    /**
+     * Moves cursor to the history table cell
+     * Integers kept as ints are taken as they are, other values are parsed if the column is numeric.
+     */
+    static void setHistoryValue(CellCursor cursor, ExcelTable table, int row, int column, boolean numeric) {
+        if (numeric && table.isInt(row, column)) {
+            cursor.setInt(table.getInt(row, column));
+        } else {
+            cursor.setValue(table.getValue(row, column), numeric);
+        }
     }
 
-    private CellData getCellData(String value, int columnCount, int fromColumnInt) {
-        if (columnCount >= fromColumnInt) {
-            Double d = Doubles.tryParse(value);
-            if (d != null && isInteger(d)) return new CellData(d, NUMERIC, true);
-            if (d != null) return new CellData(d, NUMERIC);
+
+    /**
+     * Writes history table cell: integers and decimals as numbers, other values as strings
+     */
+    private void writeHistoryCell(Row row, int column, CellCursor value, CellStyle style) {
+        Cell cell = row.createCell(column, value.getCellType());
+        cell.setCellStyle(style);
+        if (value.getCellType() == NUMERIC) {
+            if (value.isInteger()) {
+                cell.setCellValue(value.getInt());
+            } else {
+                cell.setCellValue(value.getNumber());
+            }
+        } else {
+            cell.setCellValue(value.getString());
         }
-        return new CellData(value, STRING);
     }
 
     public static void main(String[] args) throws IOException {
@@ -0,0 +1,281 @@
+package ru.kpfu.itis.excel;
+
+import ru.kpfu.itis.table.ExcelTable;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Rolling partitions of the history workbook
+ * The workbook (hot partition) keeps the first 3 columns, key columns and the last history columns.
+ * When it has more than hotColumns + archiveColumns history columns, the oldest archiveColumns columns
+ * are moved to a new archive file "<name>.archive-<n>.xlsx" next to the workbook (the same layout:
+ * blank first 3 columns, key columns and archived history columns, all rows of the workbook).
+ * So the hot workbook always has from hotColumns to hotColumns + archiveColumns history columns,
+ * updates read and write only it, archives are read on request.
+ * Archives are numbered after the highest existing number and are never overwritten. If the workbook
+ * could not be written after archiving, the next roll finds the archived columns by the last header
+ * of the newest archive and only removes them from the workbook.
+ */
+public final class HistoryPartitions {
+
+    /**
+     * Count of key columns in history table (data-id, name, tone number)
+     **/
+    private static final int KEY_COLUMNS = 3;
+
+    private static final String ARCHIVE_SUFFIX = ".xlsx";
+    private static final String ARCHIVE_MARK = ".archive-";
+
+
+    private final ExcelTableService service;
+    private final int hotColumns;
+    private final int archiveColumns;
+
+
+    /**
+     * Constructor
+     *
+     * @param service        - service used to read and write workbooks
+     * @param hotColumns     - count of the last history columns kept in the workbook
+     * @param archiveColumns - count of history columns moved to one archive
+     */
+    public HistoryPartitions(ExcelTableService service, int hotColumns, int archiveColumns) {
+        if (hotColumns < 1 || archiveColumns < 1) {
+            throw new IllegalArgumentException(String.format("Invalid partition sizes: hot %d, archive %d",
+                    hotColumns, archiveColumns));
+        }
+        this.service = service;
+        this.hotColumns = hotColumns;
+        this.archiveColumns = archiveColumns;
+    }
+
+
+    /**
+     * Moves the oldest history columns of the workbook to archives if it is too wide
+     * Only the header row is read if nothing is to be moved, otherwise each archive and the workbook are
+     * read with only their columns decoded. Columns which are already archived
+     * (the workbook was not written by the previous roll) are removed from the workbook, not archived again.
+     *
+     * @param path - path to history workbook
+     * @return count of archives created
+     * @throws IOException - if workbook or archive could not be read or written, or archive already exists
+     */
+    public int roll(String path) throws IOException {
+        String[] headers = service.readHeader(path); //only the header row is parsed
+        if (headers.length - KEY_COLUMNS <= hotColumns + archiveColumns) return 0;
+
+        List<Path> archives = archives(path);
+        int number = 0;
+        int from = KEY_COLUMNS;
+        if (!archives.isEmpty()) {
+            Path newest = archives.get(archives.size() - 1);
+            number = archiveNumber(newest);
+            from = archivedUpTo(headers, service.readTable2(newest.toString(), -1).getValue(0, 0));
+        }
+        boolean archived = from > KEY_COLUMNS;
+
+        int created = 0;
+        Path workbook = Paths.get(path).toAbsolutePath();
+        while (headers.length - from > hotColumns + archiveColumns) {
+            Path archive = archivePath(workbook, ++number);
+            //only key columns and archived columns are decoded, counts stay typed
+            ExcelTable part = service.readTable2(path, columns(from, from + archiveColumns));
+            writeAtomically(new CellBlock(0), part, archive, false);
+            from += archiveColumns;
+            created++;
+        }
+        //archives are written first, so no column is lost if the workbook could not be written
+        if (created > 0 || archived) {
+            writeAtomically(service.readTable1(path), service.readTable2(path, columns(from, headers.length)),
+                    workbook, true);
+        }
+        return created;
+    }
+
+
+    /**
+     * Returns archives of the workbook from the oldest to the newest
+     *
+     * @param path - path to history workbook
+     * @return archive files
+     * @throws IOException - if directory could not be listed
+     */
+    public List<Path> archives(String path) throws IOException {
+        Path workbook = Paths.get(path).toAbsolutePath();
+        String prefix = baseName(workbook) + ARCHIVE_MARK;
+
+        List<Path> result = new ArrayList<>();
+        String glob = prefix + "*" + ARCHIVE_SUFFIX;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(workbook.getParent(), glob)) {
+            for (Path file : files) {
+                if (archiveNumber(file) > 0) result.add(file);
+            }
+        }
+        result.sort(Comparator.comparingInt(HistoryPartitions::archiveNumber)); //numbers may outgrow fixed width
+        return result;
+    }
+
+
+    /**
+     * Reads history table of the workbook (hot partition only)
+     *
+     * @param path - path to history workbook
+     * @return history table
+     * @throws IOException - if workbook could not be read
+     */
+    public ExcelTable readHot(String path) throws IOException {
+        return service.readTable2(path);
+    }
+
+
+    /**
+     * Reads whole history: archived columns and columns of the workbook in chronological order
+     * Rows and key cells are taken from the workbook, archived cells of rows missing in an archive are blank.
+     *
+     * @param path - path to history workbook
+     * @return history table
+     * @throws IOException - if workbook or archive could not be read
+     */
+    public ExcelTable readAll(String path) throws IOException {
+        ExcelTable hot = service.readTable2(path);
+        List<ExcelTable> parts = new ArrayList<>();
+        int columns = hot.columnCount();
+        for (Path archive : archives(path)) {
+            ExcelTable part = service.readTable2(archive.toString()); //archives are opened only here
+            parts.add(part);
+            columns += part.columnCount() - KEY_COLUMNS;
+        }
+
+        ExcelTable result = new ExcelTable(hot.rowCount(), columns, hot.dictionary());
+        for (int row = 0; row < hot.rowCount(); row++) {
+            String rowKey = hot.getRowKey(row);
+            int target = result.putRow(rowKey);
+            int column = 0;
+            for (int k = 0; k < KEY_COLUMNS; k++) {
+                copyCell(hot, row, k, result, target, column++);
+            }
+            for (ExcelTable part : parts) {
+                int partRow = part.rowIndex(rowKey);
+                for (int k = KEY_COLUMNS; k < part.columnCount(); k++) {
+                    if (partRow == -1) {
+                        result.setValue(target, column++, "");
+                    } else {
+                        copyCell(part, partRow, k, result, target, column++);
+                    }
+                }
+            }
+            for (int k = KEY_COLUMNS; k < hot.columnCount(); k++) {
+                copyCell(hot, row, k, result, target, column++);
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Returns projection of key columns and history columns [from, to) for readTable2
+     */
+    private static int[] columns(int from, int to) {
+        int[] columns = new int[KEY_COLUMNS + to - from];
+        for (int k = 0; k < columns.length; k++) {
+            columns[k] = k < KEY_COLUMNS ? k : from + k - KEY_COLUMNS;
+        }
+        return columns;
+    }
+
+
+    /**
+     * Copies cell keeping integer counts typed (they are not converted to String and back)
+     */
+    private static void copyCell(ExcelTable from, int row, int column, ExcelTable to, int toRow, int toColumn) {
+        if (from.isInt(row, column)) {
+            to.setInt(toRow, toColumn, from.getInt(row, column));
+        } else {
+            to.setValue(toRow, toColumn, from.getValue(row, column));
+        }
+    }
+
+
+    /**
+     * Returns the first history column after the archived one, KEY_COLUMNS if the workbook has no archived columns
+     *
+     * @param headers      - header row of the workbook history table
+     * @param lastArchived - header of the last column of the newest archive
+     */
+    private static int archivedUpTo(String[] headers, String lastArchived) {
+        for (int column = KEY_COLUMNS; column < headers.length; column++) {
+            if (lastArchived.equals(headers[column])) return column + 1; //headers are update times
+        }
+        return KEY_COLUMNS;
+    }
+
+
+    /**
+     * Writes table to a temporary file and moves it to the target
+     *
+     * @param replace - true to replace existing target, false to fail if it exists
+     * @throws FileAlreadyExistsException - if target exists and is not to be replaced
+     */
+    private void writeAtomically(CellBlock left, ExcelTable table, Path target, boolean replace) throws IOException {
+        if (!replace && Files.exists(target)) throw new FileAlreadyExistsException(target.toString());
+
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            service.writeTwoTables(left, table, temp.toString());
+            if (!replace) {
+                Files.move(temp, target); //fails if target appeared meanwhile
+                return;
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+
+    private static Path archivePath(Path workbook, int number) {
+        return workbook.resolveSibling(String.format("%s%s%04d%s", baseName(workbook), ARCHIVE_MARK, number,
+                ARCHIVE_SUFFIX));
+    }
+
+
+    /**
+     * Returns number of the archive file, -1 if the name has no number
+     */
+    private static int archiveNumber(Path archive) {
+        String name = archive.getFileName().toString();
+        int from = name.lastIndexOf(ARCHIVE_MARK) + ARCHIVE_MARK.length();
+        int to = name.length() - ARCHIVE_SUFFIX.length();
+        if (from < ARCHIVE_MARK.length() || to <= from) return -1;
+
+        for (int i = from; i < to; i++) {
+            if (name.charAt(i) < '0' || name.charAt(i) > '9') return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(from, to));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+
+    private static String baseName(Path workbook) {
+        String name = workbook.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot == -1 ? name : name.substring(0, dot);
+    }
+}
@@ -0,0 +1,357 @@
+package ru.kpfu.itis.excel;
+
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.FormulaError;
+import org.apache.poi.util.SAXHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+import ru.kpfu.itis.table.Numbers;
+
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+import static org.apache.poi.ss.usermodel.CellType.*;
+
+/**
+ * Event based (SAX) reader of the first sheet
+ * Cells are read directly from sheet XML into reused cursors, POI object model is not built
+ * and no object is created per cell (except text of inline strings and decimal numbers).
+ * Shared strings are resolved through the read-only shared strings table.
+ * Reading may be projected to some columns: cells of other columns are not decoded (their text is not
+ * collected, numbers are not parsed, shared strings are not looked up), their cursors stay missing.
+ * NOTE: dependent cells of shared formulas have no formula text
+ */
+final class SheetEventReader extends DefaultHandler {
+
+    /**
+     * Receives rows of the sheet in order
+     */
+    interface RowHandler {
+
+        /**
+         * Called before the first row
+         * @param expectedRows - rows count from sheet dimension, 0 if unknown
+         */
+        void startSheet(int expectedRows);
+
+        /**
+         * Called for each row present in the sheet
+         *
+         * @param rowIndex  - row index counted from 0
+         * @param cells     - cells of the row (cursors are reused between rows, see CellCursor.isMissing())
+         * @param cellCount - last cell index + 1
+         */
+        void row(int rowIndex, CellCursor[] cells, int cellCount);
+    }
+
+
+    /**
+     * Thrown by a handler to stop reading (rest of the sheet is not parsed)
+     */
+    static final class StopReading extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+
+        StopReading() {
+            super(null, null, false, false); //no stack trace
+        }
+    }
+
+
+    private static final IntPredicate ALL_COLUMNS = column -> true;
+
+
+    private final ReadOnlySharedStringsTable sharedStrings;
+    private final RowHandler handler;
+    private final IntPredicate columns; //columns which cells are decoded
+
+    /**
+     * Current row state
+     **/
+    private CellCursor[] cells = newCursors(new CellCursor[0], 16);
+    private int cellCount;
+    private int rowIndex = -1;
+
+    /**
+     * Current cell state
+     **/
+    private int columnIndex = -1;
+    private boolean skipped; //cell is not in the projection
+    private String cellType;
+    private boolean hasValue;
+    private boolean hasFormula;
+    private final StringBuilder value = new StringBuilder();
+    private final StringBuilder formula = new StringBuilder();
+    private StringBuilder capture; //builder which collects characters, null if nothing is collected
+    private boolean inlineString;
+
+
+    private SheetEventReader(ReadOnlySharedStringsTable sharedStrings, RowHandler handler, IntPredicate columns) {
+        this.sharedStrings = sharedStrings;
+        this.handler = handler;
+        this.columns = columns;
+    }
+
+
+    /**
+     * Reads first sheet of the workbook
+     *
+     * @param path    - path to xlsx file
+     * @param handler - rows handler
+     * @return zip entry name of the sheet (e.g. "xl/worksheets/sheet1.xml")
+     * @throws IOException              - if file could not be read or it is not a valid workbook
+     * @throws IllegalArgumentException - if there are no sheets in the document
+     */
+    static String read(String path, RowHandler handler) throws IOException {
+        return read(path, handler, ALL_COLUMNS);
+    }
+
+
+    /**
+     * Reads first sheet of the workbook decoding only cells of the projected columns
+     * Cell count of rows includes skipped cells. Projection is tested for each cell,
+     * so it may depend on rows read before (e.g. on the header row).
+     *
+     * @param path    - path to xlsx file
+     * @param handler - rows handler
+     * @param columns - returns true for column indexes (from 0) which cells are decoded
+     * @return zip entry name of the sheet (e.g. "xl/worksheets/sheet1.xml")
+     * @throws IOException              - if file could not be read or it is not a valid workbook
+     * @throws IllegalArgumentException - if there are no sheets in the document
+     */
+    static String read(String path, RowHandler handler, IntPredicate columns) throws IOException {
+        OPCPackage pkg;
+        try {
+            pkg = OPCPackage.open(path, PackageAccess.READ);
+        } catch (OpenXML4JException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+
+        try {
+            XSSFReader reader = new XSSFReader(pkg);
+            XSSFReader.SheetIterator sheets = (XSSFReader.SheetIterator) reader.getSheetsData();
+            if (!sheets.hasNext()) throw new IllegalArgumentException("There is no sheets in the document");
+
+            SheetEventReader sheetReader = new SheetEventReader(new ReadOnlySharedStringsTable(pkg), handler, columns);
+            XMLReader parser = SAXHelper.newXMLReader();
+            parser.setContentHandler(sheetReader);
+
+            try (InputStream sheet = sheets.next()) {
+                parser.parse(new InputSource(sheet));
+            } catch (StopReading e) {
+                //handler has read everything it needs
+            }
+            return sheets.getSheetPart().getPartName().getName().substring(1); //part name starts with '/'
+        } catch (OpenXML4JException | SAXException | ParserConfigurationException e) {
+            throw new IOException(e.getMessage(), e);
+        } finally {
+            pkg.revert(); //close read-only package without saving
+        }
+    }
+
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes) {
+        switch (localName) {
+            case "dimension":
+                handler.startSheet(lastRow(attributes.getValue("ref")));
+                break;
+            case "row":
+                String r = attributes.getValue("r");
+                rowIndex = r == null ? rowIndex + 1 : Integer.parseInt(r) - 1;
+                cellCount = 0;
+                columnIndex = -1;
+                break;
+            case "c":
+                String ref = attributes.getValue("r");
+                columnIndex = ref == null ? columnIndex + 1 : columnIndex(ref);
+                skipped = !columns.test(columnIndex);
+                cellType = attributes.getValue("t");
+                hasValue = false;
+                hasFormula = false;
+                inlineString = false;
+                value.setLength(0);
+                formula.setLength(0);
+                break;
+            case "v":
+                hasValue = true;
+                if (!skipped) capture = value;
+                break;
+            case "f":
+                hasFormula = true;
+                if (!skipped) capture = formula;
+                break;
+            case "is":
+                inlineString = true;
+                break;
+            case "t":
+                if (inlineString) {
+                    hasValue = true;
+                    if (!skipped) capture = value; //rich text runs are concatenated
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+
+    @Override
+    public void endElement(String uri, String localName, String qName) {
+        switch (localName) {
+            case "v":
+            case "f":
+            case "t":
+                capture = null;
+                break;
+            case "is":
+                inlineString = false;
+                break;
+            case "c":
+                CellCursor cell = cursor(columnIndex);
+                if (!skipped) readCell(cell); //cursor of skipped cell stays missing
+                break;
+            case "row":
+                handler.row(rowIndex, cells, cellCount);
+                for (int i = 0; i < cellCount; i++) cells[i].clear();
+                break;
+            default:
+                break;
+        }
+    }
+
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+        if (capture != null) capture.append(ch, start, length);
+    }
+
+
+    /**
+     * Reads cell value as XSSFCell would read it
+     */
+    private void readCell(CellCursor cell) {
+        if (hasFormula) {
+            cell.setText(FORMULA, formula);
+            return;
+        }
+        if (cellType == null || "n".equals(cellType)) {
+            if (!hasValue || value.length() == 0) {
+                cell.setBlank();
+            } else {
+                long parsed = Numbers.parseInt(value); //integers (counts) are not parsed as doubles
+                if (parsed != Numbers.NOT_INT) {
+                    cell.setInt((int) parsed);
+                } else {
+                    cell.setNumber(Double.parseDouble(value.toString()));
+                }
+            }
+            return;
+        }
+        switch (cellType) {
+            case "s":
+                if (!hasValue) {
+                    cell.setBlank();
+                } else {
+                    cell.setString(STRING, sharedStrings.getEntryAt(parseIndex(value)));
+                }
+                break;
+            case "inlineStr":
+            case "str":
+                cell.setText(STRING, value);
+                break;
+            case "b":
+                cell.setBoolean(isTrue(value));
+                break;
+            case "e":
+                cell.setError(FormulaError.forString(value.toString()).getCode());
+                break;
+            default:
+                throw new IllegalArgumentException("There is no such type of cell");
+        }
+    }
+
+
+    /**
+     * Returns cursor of the column, extends cells of the row
+     */
+    private CellCursor cursor(int column) {
+        if (column >= cells.length) {
+            cells = newCursors(cells, Math.max(cells.length * 2, column + 1));
+        }
+        cellCount = Math.max(cellCount, column + 1);
+        return cells[column];
+    }
+
+
+    private static CellCursor[] newCursors(CellCursor[] cells, int length) {
+        CellCursor[] result = Arrays.copyOf(cells, length);
+        for (int i = cells.length; i < length; i++) result[i] = new CellCursor();
+        return result;
+    }
+
+
+    /**
+     * Parses index of shared string (surrounding whitespace is ignored as String.trim() does)
+     */
+    private static int parseIndex(CharSequence s) {
+        int start = 0;
+        int end = s.length();
+        while (start < end && s.charAt(start) <= ' ') start++;
+        while (end > start && s.charAt(end - 1) <= ' ') end--;
+        if (start == end) throw new NumberFormatException("Shared string index is empty");
+
+        int result = 0;
+        for (int k = start; k < end; k++) {
+            int digit = s.charAt(k) - '0';
+            if (digit < 0 || digit > 9) throw new NumberFormatException("Invalid shared string index: " + s);
+            result = result * 10 + digit;
+        }
+        return result;
+    }
+
+
+    private static boolean isTrue(CharSequence s) {
+        int start = 0;
+        int end = s.length();
+        while (start < end && s.charAt(start) <= ' ') start++;
+        while (end > start && s.charAt(end - 1) <= ' ') end--;
+        return end - start == 1 && s.charAt(start) == '1';
+    }
+
+
+    /**
+     * Converts column letters of the cell reference (e.g. "AB12") into index from 0
+     */
+    private static int columnIndex(String ref) {
+        int column = 0;
+        for (int i = 0; i < ref.length(); i++) {
+            char c = ref.charAt(i);
+            if (c < 'A' || c > 'Z') break;
+            column = column * 26 + (c - 'A' + 1);
+        }
+        return column - 1;
+    }
+
+
+    /**
+     * Returns last row number of dimension reference (e.g. "A1:K500" - 500)
+     */
+    private static int lastRow(String ref) {
+        if (ref == null) return 0;
+        int i = ref.length();
+        while (i > 0 && Character.isDigit(ref.charAt(i - 1))) i--;
+        return i == ref.length() ? 0 : Integer.parseInt(ref.substring(i));
+    }
+}
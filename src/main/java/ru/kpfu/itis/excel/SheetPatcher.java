@@ -0,0 +1,336 @@
+package ru.kpfu.itis.excel;
+
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.util.CellReference;
+import ru.kpfu.itis.table.ExcelTable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Appends one column and new rows to the sheet XML of an existing workbook
+ * Zip entries are copied as they are (only re-compressed), in the sheet XML new cells are inserted
+ * before "</row>", new rows before "</sheetData>", width of the new column is added to "<cols>"
+ * and "<dimension>" is updated. Other bytes of the sheet are copied unchanged.
+ * New cells get the style of the last cell seen in their column (or in the previous column for the new column),
+ * so appended cells are aligned as cells written by ExcelTableService.
+ * Values are taken from the appended table, integers kept as ints are written as they are (no double round trip).
+ *
+ * NOTE: tags are recognized by name, sheet must not contain comments or CDATA with tags
+ * (POI and Excel do not write them in sheet data)
+ */
+final class SheetPatcher {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Width of history column (as in setUpColumnWidth)
+     **/
+    private static final String HISTORY_COLUMN_WIDTH = "6.0";
+
+
+    /**
+     * Count of key columns in appended table (data-id, name, tone number)
+     **/
+    private static final int KEY_COLUMNS = 3;
+
+
+    /**
+     * Cells to be appended to the sheet
+     * rows - sheet row index -> row of the table, its last column is the value of the new column (blank - no cell)
+     * newRows - rows of the table to be added after the last row: key columns from 'firstColumn' and the new column
+     **/
+    private final String sheetEntry;
+    private final int column;
+    private final ExcelTable table;
+    private final Map<Integer, Integer> rows;
+    private final int lastRow;
+    private final int[] newRows;
+    private final int firstColumn;
+
+    private final CellCursor cursor = new CellCursor(); //reused for all new cells
+
+    private int row = -1; //current sheet row index
+    private int cellColumn = -1; //column of the last cell in the current row
+    private String[] styles = new String[16]; //column -> style index of the last cell seen, null - default
+
+
+    /**
+     * Constructor
+     *
+     * @param sheetEntry  - zip entry name of the sheet
+     * @param column      - index of the new column
+     * @param table       - appended table (data-id, name, tone number, ..., new column)
+     * @param rows        - sheet row index -> row of the table
+     * @param lastRow     - index of the last row in the sheet, new rows are added after it
+     * @param newRows     - rows of the table to be added
+     * @param firstColumn - column index of the data-id of new rows
+     */
+    SheetPatcher(String sheetEntry, int column, ExcelTable table, Map<Integer, Integer> rows,
+                 int lastRow, int[] newRows, int firstColumn) {
+        this.sheetEntry = sheetEntry;
+        this.column = column;
+        this.table = table;
+        this.rows = rows;
+        this.lastRow = lastRow;
+        this.newRows = newRows;
+        this.firstColumn = firstColumn;
+    }
+
+
+    /**
+     * Copies workbook patching the sheet
+     *
+     * @param source - workbook to be copied
+     * @param out    - stream of the new workbook
+     * @throws IOException - if workbook could not be read or there is no sheet entry
+     */
+    void patch(ZipFile source, OutputStream out) throws IOException {
+        boolean patched = false;
+        try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(out, BUFFER_SIZE))) {
+            Enumeration<? extends ZipEntry> entries = source.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                ZipEntry copy = new ZipEntry(entry.getName()); //sizes of the source entry are not valid for the copy
+                copy.setTime(entry.getTime());
+                zip.putNextEntry(copy);
+
+                try (InputStream in = new BufferedInputStream(source.getInputStream(entry), BUFFER_SIZE)) {
+                    if (entry.getName().equals(sheetEntry)) {
+                        patchSheet(in, zip);
+                        patched = true;
+                    } else {
+                        copy(in, zip);
+                    }
+                }
+                zip.closeEntry();
+            }
+        }
+        if (!patched) throw new IOException(String.format("There is no sheet '%s' in the document", sheetEntry));
+    }
+
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+    }
+
+
+    /**
+     * Copies sheet XML tag by tag, text between tags is copied as is
+     */
+    private void patchSheet(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        ByteArrayOutputStream tag = new ByteArrayOutputStream(128);
+        boolean inTag = false;
+        int quote = 0;
+
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            int textStart = 0;
+            for (int i = 0; i < n; i++) {
+                byte b = buffer[i];
+                if (!inTag) {
+                    if (b != '<') continue;
+                    out.write(buffer, textStart, i - textStart); //text before the tag
+                    inTag = true;
+                    tag.reset();
+                    tag.write(b);
+                    continue;
+                }
+
+                tag.write(b);
+                if (quote != 0) {
+                    if (b == quote) quote = 0;
+                } else if (b == '"' || b == '\'') {
+                    quote = b;
+                } else if (b == '>') {
+                    inTag = false;
+                    textStart = i + 1;
+                    onTag(tag.toString(StandardCharsets.UTF_8.name()), out);
+                }
+            }
+            if (!inTag) out.write(buffer, textStart, n - textStart);
+        }
+        if (inTag) out.write(tag.toByteArray()); //unterminated tag is copied as is
+    }
+
+
+    private void onTag(String tag, OutputStream out) throws IOException {
+        String name = tagName(tag);
+        boolean empty = tag.endsWith("/>");
+
+        switch (name) {
+            case "dimension":
+                int last = Math.max(lastRow + newRows.length, 0);
+                write(out, "<dimension ref=\"A1:" + new CellReference(last, column).formatAsString() + "\"/>");
+                return;
+            case "row":
+                String r = attribute(tag, "r");
+                row = r == null ? row + 1 : Integer.parseInt(r) - 1;
+                cellColumn = -1;
+                if (empty && hasCell(row)) { //<row r="5"/> -> <row r="5">cell</row>
+                    write(out, tag.substring(0, tag.length() - 2) + ">");
+                    writeCell(out, row, column, rows.get(row), table.columnCount() - 1);
+                    write(out, "</row>");
+                    return;
+                }
+                break;
+            case "c":
+                String ref = attribute(tag, "r");
+                cellColumn = ref == null ? cellColumn + 1 : new CellReference(ref).getCol();
+                if (cellColumn >= styles.length) {
+                    styles = Arrays.copyOf(styles, Math.max(styles.length * 2, cellColumn + 1));
+                }
+                styles[cellColumn] = attribute(tag, "s");
+                break;
+            case "/row":
+                if (hasCell(row)) writeCell(out, row, column, rows.get(row), table.columnCount() - 1);
+                break;
+            case "/cols":
+                writeColumnWidth(out);
+                break;
+            case "sheetData":
+                if (empty) {
+                    write(out, "<sheetData>");
+                    writeNewRows(out);
+                    write(out, "</sheetData>");
+                    return;
+                }
+                break;
+            case "/sheetData":
+                writeNewRows(out);
+                break;
+            default:
+                break;
+        }
+        write(out, tag);
+    }
+
+
+    private boolean hasCell(int row) {
+        Integer tableRow = rows.get(row);
+        return tableRow != null && hasValue(tableRow, table.columnCount() - 1);
+    }
+
+
+    private boolean hasValue(int tableRow, int tableColumn) {
+        if (table.isInt(tableRow, tableColumn)) return true;
+        String value = table.getValue(tableRow, tableColumn);
+        return value != null && !value.isEmpty();
+    }
+
+
+    private void writeColumnWidth(OutputStream out) throws IOException {
+        if (column < 6) return; //key columns have their own widths
+        write(out, String.format("<col min=\"%d\" max=\"%d\" width=\"%s\" customWidth=\"true\"/>",
+                column + 1, column + 1, HISTORY_COLUMN_WIDTH));
+    }
+
+
+    private void writeNewRows(OutputStream out) throws IOException {
+        int valueColumn = table.columnCount() - 1;
+        for (int i = 0; i < newRows.length; i++) {
+            int sheetRow = lastRow + 1 + i;
+            write(out, "<row r=\"" + (sheetRow + 1) + "\">");
+            for (int k = 0; k < KEY_COLUMNS; k++) {
+                if (hasValue(newRows[i], k)) writeCell(out, sheetRow, firstColumn + k, newRows[i], k);
+            }
+            if (hasValue(newRows[i], valueColumn)) writeCell(out, sheetRow, column, newRows[i], valueColumn);
+            write(out, "</row>\n");
+        }
+    }
+
+
+    /**
+     * Writes cell of the table: integer and decimal values of history columns as numbers, others as inline strings
+     * (the same types as writeTwoTables creates, integers as Integer.toString)
+     */
+    private void writeCell(OutputStream out, int row, int column, int tableRow, int tableColumn) throws IOException {
+        String ref = new CellReference(row, column).formatAsString() + "\"" + style(column);
+        ExcelTableService.setHistoryValue(cursor, table, tableRow, tableColumn, column >= 6);
+        if (cursor.getCellType() == CellType.NUMERIC) {
+            String number = cursor.isInteger() ? Integer.toString(cursor.getInt()) : Double.toString(cursor.getNumber());
+            write(out, "<c r=\"" + ref + " t=\"n\"><v>" + number + "</v></c>");
+        } else {
+            String value = cursor.getString();
+            String space = value.trim().length() != value.length() ? " xml:space=\"preserve\"" : "";
+            write(out, "<c r=\"" + ref + " t=\"inlineStr\"><is><t" + space + ">" + escape(value) + "</t></is></c>");
+        }
+    }
+
+
+    /**
+     * Returns style attribute of the new cell: style of the column or of the previous column
+     */
+    private String style(int column) {
+        for (int c = Math.min(column, styles.length - 1); c >= column - 1 && c >= 0; c--) {
+            if (styles[c] != null) return " s=\"" + styles[c] + "\"";
+        }
+        return "";
+    }
+
+
+    private static String escape(String value) {
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&':
+                    sb.append("&amp;");
+                    break;
+                case '<':
+                    sb.append("&lt;");
+                    break;
+                case '>':
+                    sb.append("&gt;");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * Returns tag name without prefix, "/name" for closing tags
+     */
+    private static String tagName(String tag) {
+        int start = tag.startsWith("</") ? 2 : 1;
+        int end = start;
+        while (end < tag.length() && " \t\r\n/>".indexOf(tag.charAt(end)) == -1) end++;
+        String name = tag.substring(start, end);
+        int colon = name.indexOf(':');
+        if (colon != -1) name = name.substring(colon + 1);
+        return start == 2 ? "/" + name : name;
+    }
+
+
+    private static String attribute(String tag, String name) {
+        int idx = tag.indexOf(" " + name + "=");
+        if (idx == -1) return null;
+        int start = idx + name.length() + 2;
+        char quote = tag.charAt(start);
+        return tag.substring(start + 1, tag.indexOf(quote, start + 1));
+    }
+
+
+    private static void write(OutputStream out, String s) throws IOException {
+        out.write(s.getBytes(StandardCharsets.UTF_8));
+    }
+}
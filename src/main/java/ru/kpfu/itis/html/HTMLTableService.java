@@ -4,14 +4,16 @@ import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
+import ru.kpfu.itis.metrics.Metrics;
+import ru.kpfu.itis.metrics.Stage;
 import ru.kpfu.itis.table.ExcelTable;
+import ru.kpfu.itis.table.StringDictionary;
 
-import java.io.File;
 import java.io.IOException;
 import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.function.Consumer;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Class that converts html page to ExcelTable
@@ -24,6 +26,76 @@ public final class HTMLTableService {
     private static final String DATA_TABLE_CLASS = ".b2b-basket-prods-list table tr";
 
 
+    /**
+     * Row cells extraction plan, compiled once and shared by all files
+     **/
+    private static final RowExtractionPlan ROW_PLAN = RowExtractionPlan.of(
+            RowExtractionPlan.attribute(".c1", "rowspan"), //rowspan
+            RowExtractionPlan.text(".c1"), //name
+            RowExtractionPlan.text(".c2"), //tone number
+            RowExtractionPlan.attribute(".c9 input", "max") //max count
+    );
+
+    private static final int ROWSPAN_SLOT = 0;
+    private static final int NAME_SLOT = 1;
+    private static final int TONE_SLOT = 2;
+    private static final int MAX_SLOT = 3;
+    private static final int DATA_ID_SLOT = 4; //only in rows extracted by ExtractRows
+
+
+    /**
+     * Parallel extraction: pages with fewer rows are extracted sequentially,
+     * a chunk is not split further if it has fewer than MIN_CHUNK_ROWS rows
+     **/
+    private static final int PARALLEL_THRESHOLD = 2048;
+    private static final int MIN_CHUNK_ROWS = 512;
+
+
+    /**
+     * Cache of parsed pages, null if pages are always parsed
+     **/
+    private final SnapshotCache cache;
+
+
+    /**
+     * Dictionary of string cells (names, tone numbers, data-ids) of created tables
+     * null - each table has its own dictionary
+     **/
+    private final StringDictionary dictionary;
+
+
+    /**
+     * Default constructor
+     * Pages are parsed on each call
+     */
+    public HTMLTableService() {
+        this(null);
+    }
+
+
+    /**
+     * Constructor
+     *
+     * @param cache - cache of parsed pages (null - no cache)
+     */
+    public HTMLTableService(SnapshotCache cache) {
+        this(cache, null);
+    }
+
+
+    /**
+     * Constructor
+     *
+     * @param cache      - cache of parsed pages (null - no cache)
+     * @param dictionary - dictionary of string cells of created tables (null - each table has its own one),
+     *                   it is never cleared, so it should be used for one run only
+     */
+    public HTMLTableService(SnapshotCache cache, StringDictionary dictionary) {
+        this.cache = cache;
+        this.dictionary = dictionary;
+    }
+
+
     /**
      * Creates ExcelTable from and existing HTML file
      *
@@ -32,11 +104,54 @@ public final class HTMLTableService {
      * @throws IOException (SelectorParseException) - exception while loading DOM or if selector is invalid
      */
     public ExcelTable createTable(String path) throws IOException {
+        return createTable(path, ParseMode.DOM);
+    }
+
+
+    /**
+     * Creates ExcelTable from and existing HTML file
+     *
+     * @param path - path to HTML
+     * @param mode - parse mode (DOM, STREAMING or PARALLEL)
+     * @return ExcelTable instance converted form HTML
+     * @throws IOException (SelectorParseException) - exception while loading DOM or if selector is invalid
+     */
+    public ExcelTable createTable(String path, ParseMode mode) throws IOException {
+        long start = Metrics.start();
+        ExcelTable table = loadTable(path, mode);
+        Metrics.stop(Stage.CREATE_TABLE, start, table.rowCount(), (long) table.rowCount() * table.columnCount(),
+                Metrics.fileSize(path));
+        return table;
+    }
+
+
+    private ExcelTable loadTable(String path, ParseMode mode) throws IOException {
+
+        if (cache == null) return parseTable(path, mode);
+
+        String key = cache.key(Paths.get(path));
+        ExcelTable cached = cache.read(key, createHeaders(), dictionary(0));
+        if (cached != null) return cached;
+
+        ExcelTable table = parseTable(path, mode);
+        cache.write(key, table);
+        return table;
+    }
+
+
+    private ExcelTable parseTable(String path, ParseMode mode) throws IOException {
+
+        if (mode == ParseMode.STREAMING) {
+            return streamTable(path);
+        }
 
         Document document = loadDocument(path);
 
         Elements tableRows = document.select(DATA_TABLE_CLASS);
 
+        if (mode == ParseMode.PARALLEL && tableRows.size() >= PARALLEL_THRESHOLD) {
+            return buildTableParallel(tableRows);
+        }
         return buildTable(tableRows);
     }
 
@@ -51,40 +166,130 @@ public final class HTMLTableService {
 
         String[] headers = createHeaders(); //create headers
 
-        final ExcelTable table = new ExcelTable(tableRows.size(), headers.length); //create table
+        final ExcelTable table = new ExcelTable(tableRows.size(), headers.length, dictionary(tableRows.size())); //create table
+
+        table.addRow(ExcelTable.HEADERS_KEY, headers); //add headers to table
+
+        TableRowCollector collector = new TableRowCollector(table);
+        RowExtractionPlan.Extraction extraction = ROW_PLAN.newExtraction();
+
+        //iterating through DOM rows, each row is visited once
+        for (Element row : tableRows) {
+            extraction.apply(row);
+            if (collector.isGroupStart()) {
+                collector.startGroup(extraction.get(ROWSPAN_SLOT), extraction.get(NAME_SLOT));
+            }
+            collector.addRow(
+                    row.attr("data-id"), //data-id
+                    extraction.get(TONE_SLOT), //tone number
+                    extraction.get(MAX_SLOT) //max count
+            );
+        }
+
+        return table;
+    }
+
+
+    /**
+     * Builds table form selected rows extracting cells on fork-join pool
+     * Cells of row chunks are extracted in parallel, then rows are added in the original order
+     * and rowspan groups are resolved exactly as in buildTable() (group boundaries are known only
+     * after rowspans of the previous rows are extracted), so the table is the same.
+     * Runs on the pool of the calling fork-join worker (e.g. batch conversion), otherwise on the common pool.
+     *
+     * @param tableRows - DOM rows
+     * @return ExcelTable instance
+     */
+    private ExcelTable buildTableParallel(Elements tableRows) {
+
+        String[] headers = createHeaders(); //create headers
+
+        final ExcelTable table = new ExcelTable(tableRows.size(), headers.length, dictionary(tableRows.size())); //create table
 
         table.addRow(ExcelTable.HEADERS_KEY, headers); //add headers to table
 
-        //iterating through DOM rows
-        tableRows.forEach(new Consumer<Element>() {
-            private byte rowspan = 0; //HTML rowspan attribute
-            private String name; //product name
-
-            @Override
-            public void accept(Element row) {
-                if (rowspan == 0) {
-                    rowspan = Byte.parseByte(row.select(".c1").attr("rowspan"));
-                    name = cleanText(row.select(".c1"));
-                }
-                String dataId = row.attr("data-id");
-                --rowspan; //decrement rowspan
-
-                //add row to table
-                table.addRow(dataId, new String[]{
-                        dataId, //data-id
-                        name, //name
-                        row.select(".c2").text(), //tone number
-                        row.select(".c9 input").attr("max") //max count
-                });
+        String[][] rows = new String[tableRows.size()][];
+        new ExtractRows(tableRows, rows, 0, rows.length).invoke();
+
+        TableRowCollector collector = new TableRowCollector(table);
+        for (String[] row : rows) {
+            if (collector.isGroupStart()) {
+                collector.startGroup(row[ROWSPAN_SLOT], row[NAME_SLOT]);
             }
-        });
+            collector.addRow(row[DATA_ID_SLOT], row[TONE_SLOT], row[MAX_SLOT]);
+        }
 
         return table;
     }
 
 
-    private String cleanText(Elements text) {
-        return text.text().replace("PAESE", "").replace("  ", "").replace("Paese", "").replace("paese", "");
+    /**
+     * Extracts cells of rows [from, to) into 'rows' (plan slots and data-id), splits range in halves
+     * DOM is only read, so chunks of one document may be extracted concurrently.
+     */
+    private static final class ExtractRows extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Elements tableRows;
+        private final String[][] rows;
+        private final int from;
+        private final int to;
+
+
+        ExtractRows(Elements tableRows, String[][] rows, int from, int to) {
+            this.tableRows = tableRows;
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+        }
+
+
+        @Override
+        protected void compute() {
+            if (to - from > MIN_CHUNK_ROWS * 2) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ExtractRows(tableRows, rows, from, middle), new ExtractRows(tableRows, rows, middle, to));
+                return;
+            }
+
+            RowExtractionPlan.Extraction extraction = ROW_PLAN.newExtraction(); //one per chunk, not thread-safe
+            for (int i = from; i < to; i++) {
+                Element row = tableRows.get(i);
+                extraction.apply(row);
+                rows[i] = new String[]{
+                        extraction.get(ROWSPAN_SLOT),
+                        extraction.get(NAME_SLOT),
+                        extraction.get(TONE_SLOT),
+                        extraction.get(MAX_SLOT),
+                        row.attr("data-id")
+                };
+            }
+        }
+    }
+
+
+    /**
+     * Builds table without DOM, rows are extracted while HTML is being tokenized
+     *
+     * @param path - path to HTML
+     * @return ExcelTable instance
+     * @throws IOException - if the file could not be found, or read
+     */
+    private ExcelTable streamTable(String path) throws IOException {
+
+        String[] headers = createHeaders(); //create headers
+
+        final ExcelTable table = new ExcelTable(0, headers.length, dictionary(0)); //rows count is unknown
+
+        table.addRow(ExcelTable.HEADERS_KEY, headers); //add headers to table
+
+        //decoded window by window from the file channel
+        try (HtmlInput input = HtmlInput.open(path)) {
+            StreamingRowExtractor.extract(input.reader(), new TableRowCollector(table));
+        }
+
+        return table;
     }
 
 
@@ -93,13 +298,22 @@ public final class HTMLTableService {
      *
      * @param path - path to an existing file
      * @return DOM (Document Object Model) representing HTML
-     * @throws IOException (InvalidPathException) - if the file could not be found, or read,
-     *                     or if the charsetName is invalid.
+     * @throws IOException (InvalidPathException) - if the file could not be found, or read
      */
     private Document loadDocument(String path) throws IOException {
 
-        File inputHtml = Paths.get(path).toFile();
-        return Jsoup.parse(inputHtml, null); //try to parse with http-equiv, otherwise UTF-8
+        //file is decoded once with charset of BOM or meta tag, otherwise UTF-8
+        try (HtmlInput input = HtmlInput.open(path)) {
+            return Jsoup.parse(input.text(), path);
+        }
+    }
+
+
+    /**
+     * Returns dictionary of a new table: dictionary of the service or a new one
+     */
+    private StringDictionary dictionary(int rows) {
+        return dictionary != null ? dictionary : new StringDictionary(rows);
     }
 
 
@@ -120,6 +334,17 @@ public final class HTMLTableService {
     }
 
 
+    /**
+     * HTML parse modes
+     * DOM - whole document is loaded by jsoup, then rows are selected
+     * STREAMING - rows are extracted while HTML is being tokenized, DOM is not built
+     * PARALLEL - as DOM, cells of large pages are extracted on fork-join pool
+     */
+    public enum ParseMode {
+        DOM, STREAMING, PARALLEL
+    }
+
+
     /**
      * Headers enum
      */
@@ -0,0 +1,199 @@
+package ru.kpfu.itis.html;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * HTML file opened for decoding
+ * Charset is detected by BOM or meta tag in the first CHARSET_SCAN_BYTES bytes (separate small read),
+ * then content is decoded through a fixed BUFFER_BYTES window of the channel, so memory used by
+ * the reader does not grow with the file size. File is not memory-mapped: a mapping can not be released
+ * deterministically and keeps the file locked on Windows. Input must be closed.
+ */
+final class HtmlInput implements Closeable {
+
+    /**
+     * Bytes to be scanned for BOM and meta charset
+     **/
+    static final int CHARSET_SCAN_BYTES = 4096;
+
+    /**
+     * Size of the byte window the content is decoded from
+     **/
+    static final int BUFFER_BYTES = 1 << 16;
+
+    private static final Pattern META_CHARSET = Pattern.compile(
+            "<meta[^>]+charset\\s*=\\s*[\"']?\\s*([a-zA-Z0-9_.:\\-]+)", Pattern.CASE_INSENSITIVE);
+
+
+    private final String path;
+    private final FileChannel channel;
+    private final Charset charset;
+    private final int start; //content position after BOM
+
+
+    private HtmlInput(String path, FileChannel channel, Charset charset, int start) {
+        this.path = path;
+        this.channel = channel;
+        this.charset = charset;
+        this.start = start;
+    }
+
+
+    /**
+     * Opens HTML file and detects its charset
+     *
+     * @param path - path to HTML
+     * @return input to be closed by the caller
+     * @throws IOException - if the file could not be found, or read
+     */
+    static HtmlInput open(String path) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        try {
+            ByteBuffer head = ByteBuffer.allocate((int) Math.min(channel.size(), CHARSET_SCAN_BYTES));
+            while (head.hasRemaining()) {
+                if (channel.read(head, head.position()) == -1) break; //file is being truncated
+            }
+            head.flip();
+            Charset charset = detectCharset(head);
+            return new HtmlInput(path, channel, charset, head.position());
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+
+    /**
+     * Decodes whole content (malformed bytes are replaced)
+     * jsoup parses Strings only, so the text is built once, file bytes are decoded window by window.
+     *
+     * @return HTML text
+     * @throws IOException - if the file could not be read or it is too large for a String
+     */
+    String text() throws IOException {
+        double chars = (double) (channel.size() - start) * charset.newDecoder().averageCharsPerByte();
+        if (chars >= Integer.MAX_VALUE) {
+            throw new IOException(String.format("File '%s' is too large", path));
+        }
+        StringBuilder text = new StringBuilder((int) chars);
+        Reader reader = reader();
+        char[] chunk = new char[BUFFER_BYTES];
+        int n;
+        while ((n = reader.read(chunk, 0, chunk.length)) != -1) {
+            text.append(chunk, 0, n);
+        }
+        return text.toString();
+    }
+
+
+    /**
+     * Returns reader decoding content chunk by chunk into the caller's buffer
+     * Only one BUFFER_BYTES window of file bytes is kept, reader does not close the input.
+     *
+     * @return reader of HTML text
+     */
+    Reader reader() {
+        ByteBuffer bytes = ByteBuffer.allocate(BUFFER_BYTES);
+        bytes.flip(); //empty, filled on the first read
+        CharsetDecoder decoder = decoder();
+
+        return new Reader() {
+            private long position = start;
+            private boolean eof;
+            private boolean flushed;
+
+            @Override
+            public int read(char[] buffer, int offset, int length) throws IOException {
+                if (length == 0) return 0;
+                CharBuffer out = CharBuffer.wrap(buffer, offset, length);
+                while (out.position() == offset && !flushed) {
+                    CoderResult result = decoder.decode(bytes, out, eof);
+                    if (result.isOverflow()) break; //buffer is too short for the next character
+                    if (eof) { //all bytes are decoded
+                        decoder.flush(out);
+                        flushed = true;
+                    } else {
+                        fill();
+                    }
+                }
+                int read = out.position() - offset;
+                return read == 0 && flushed ? -1 : read;
+            }
+
+            /**
+             * Moves undecoded bytes to the start of the window and reads next bytes after them
+             */
+            private void fill() throws IOException {
+                bytes.compact();
+                int n = channel.read(bytes, position);
+                bytes.flip();
+                if (n == -1) {
+                    eof = true;
+                } else {
+                    position += n;
+                }
+            }
+
+            @Override
+            public void close() { }
+        };
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+
+    private CharsetDecoder decoder() {
+        return charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+
+    /**
+     * Detects charset by BOM or meta tag, UTF-8 by default
+     * UTF-8 BOM is skipped (buffer position is moved), UTF-16 decoder consumes BOM itself.
+     */
+    private static Charset detectCharset(ByteBuffer head) {
+        int length = head.remaining();
+
+        if (length >= 3 && (head.get(0) & 0xFF) == 0xEF && (head.get(1) & 0xFF) == 0xBB
+                && (head.get(2) & 0xFF) == 0xBF) {
+            head.position(3); //skip UTF-8 BOM
+            return StandardCharsets.UTF_8;
+        }
+        if (length >= 2 && ((head.get(0) & 0xFF) == 0xFE && (head.get(1) & 0xFF) == 0xFF
+                || (head.get(0) & 0xFF) == 0xFF && (head.get(1) & 0xFF) == 0xFE)) {
+            return StandardCharsets.UTF_16;
+        }
+
+        Matcher matcher = META_CHARSET.matcher(new String(head.array(), 0, length, StandardCharsets.ISO_8859_1));
+        if (matcher.find()) {
+            try {
+                return Charset.forName(matcher.group(1));
+            } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+                return StandardCharsets.UTF_8;
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+}
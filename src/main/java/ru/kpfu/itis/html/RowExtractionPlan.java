@@ -0,0 +1,304 @@
+package ru.kpfu.itis.html;
+
+import org.jsoup.helper.StringUtil;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+import org.jsoup.select.Evaluator;
+import org.jsoup.select.NodeTraversor;
+import org.jsoup.select.NodeVisitor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Precompiled cell extraction plan
+ * CSS queries are parsed once into evaluators, then each row is visited only once
+ * and every element is checked against all evaluators.
+ * Supported queries are tag and class selectors joined by descendant combinator (e.g. ".c9 input").
+ * Result of every target is the same as row.select(query).text() or row.select(query).attr(name),
+ * except that text of a matched element nested in another matched element is not joined twice.
+ * Plan is immutable and can be shared between threads, Extraction is not.
+ */
+final class RowExtractionPlan {
+
+    private final Target[] targets;
+
+
+    private RowExtractionPlan(Target[] targets) {
+        this.targets = targets;
+    }
+
+
+    /**
+     * Creates plan, slot of each target is its index
+     *
+     * @param targets - targets to be extracted
+     * @return plan
+     */
+    static RowExtractionPlan of(Target... targets) {
+        return new RowExtractionPlan(targets.clone());
+    }
+
+
+    /**
+     * Target that takes joined text of all matched elements
+     *
+     * @param query - CSS query relative to the row
+     * @return target
+     * @throws IllegalArgumentException - if query is not supported
+     */
+    static Target text(String query) {
+        return new Target(compile(query), null);
+    }
+
+
+    /**
+     * Target that takes attribute of the first matched element having this attribute
+     *
+     * @param query     - CSS query relative to the row
+     * @param attribute - attribute name
+     * @return target
+     * @throws IllegalArgumentException - if query is not supported
+     */
+    static Target attribute(String query, String attribute) {
+        return new Target(compile(query), attribute);
+    }
+
+
+    /**
+     * Compiles CSS query into evaluator
+     * Descendant steps are checked on ancestors up to the root (inclusive), the root itself is not a descendant,
+     * as jsoup's descendant evaluator does (so ".c9 input" matches inputs of a row with class c9).
+     *
+     * @param query - CSS query
+     * @return evaluator
+     * @throws IllegalArgumentException - if query is not supported
+     */
+    private static Evaluator compile(String query) {
+        String[] steps = query.trim().split("\\s+");
+        if (steps.length == 0 || steps[0].isEmpty()) {
+            throw new IllegalArgumentException("Query is empty");
+        }
+
+        Evaluator result = compileStep(steps[0]);
+        for (int i = 1; i < steps.length; i++) {
+            result = new Descendant(compileStep(steps[i]), result);
+        }
+        return result;
+    }
+
+
+    /**
+     * Compiles compound selector (tag.class1.class2)
+     */
+    private static Evaluator compileStep(String step) {
+        List<Evaluator> evaluators = new ArrayList<>();
+        String[] parts = step.split("\\.", -1);
+
+        if (!parts[0].isEmpty()) evaluators.add(new Evaluator.Tag(checkName(parts[0], step).toLowerCase()));
+        for (int i = 1; i < parts.length; i++) {
+            evaluators.add(new Evaluator.Class(checkName(parts[i], step)));
+        }
+        return evaluators.size() == 1 ? evaluators.get(0) : new All(evaluators.toArray(new Evaluator[0]));
+    }
+
+
+    private static String checkName(String name, String step) {
+        if (name.isEmpty() || !name.matches("[\\w-]+")) {
+            throw new IllegalArgumentException(String.format("Unsupported selector '%s'", step));
+        }
+        return name;
+    }
+
+
+    /**
+     * Creates reusable extraction state for one thread
+     * @return extraction
+     */
+    Extraction newExtraction() {
+        return new Extraction();
+    }
+
+
+    /**
+     * Compiled selector mapped to the result slot
+     */
+    static final class Target {
+
+        private final Evaluator evaluator;
+        private final String attribute; //null for text target
+
+        private Target(Evaluator evaluator, String attribute) {
+            this.evaluator = evaluator;
+            this.attribute = attribute;
+        }
+    }
+
+
+    /**
+     * Matches if all evaluators match
+     */
+    private static final class All extends Evaluator {
+
+        private final Evaluator[] evaluators;
+
+        private All(Evaluator[] evaluators) {
+            this.evaluators = evaluators;
+        }
+
+        @Override
+        public boolean matches(Element root, Element element) {
+            for (Evaluator evaluator : evaluators) {
+                if (!evaluator.matches(root, element)) return false;
+            }
+            return true;
+        }
+    }
+
+
+    /**
+     * Matches element (not the root) which matches 'self' and has ancestor matching 'ancestor',
+     * the root is checked as an ancestor too
+     */
+    private static final class Descendant extends Evaluator {
+
+        private final Evaluator self;
+        private final Evaluator ancestor;
+
+        private Descendant(Evaluator self, Evaluator ancestor) {
+            this.self = self;
+            this.ancestor = ancestor;
+        }
+
+        @Override
+        public boolean matches(Element root, Element element) {
+            if (element == root || !self.matches(root, element)) return false;
+            for (Element parent = element.parent(); parent != null; parent = parent.parent()) {
+                if (ancestor.matches(root, parent)) return true;
+                if (parent == root) break;
+            }
+            return false;
+        }
+    }
+
+
+    /**
+     * Applies plan to rows, single traversal per row
+     */
+    final class Extraction implements NodeVisitor {
+
+        private final StringBuilder[] joined = new StringBuilder[targets.length]; //text of all matched elements
+        private final StringBuilder[] current = new StringBuilder[targets.length]; //text of the open element
+        private final Element[] open = new Element[targets.length]; //matched element which text is collected
+        private final String[] values = new String[targets.length];
+        private final NodeTraversor traversor = new NodeTraversor(this);
+
+        private Element root;
+
+        private Extraction() {
+            for (int i = 0; i < targets.length; i++) {
+                joined[i] = new StringBuilder();
+                current[i] = new StringBuilder();
+            }
+        }
+
+
+        /**
+         * Extracts all targets from the row
+         * @param row - row element
+         */
+        void apply(Element row) {
+            for (int i = 0; i < targets.length; i++) {
+                joined[i].setLength(0);
+                open[i] = null;
+                values[i] = null;
+            }
+            root = row;
+            traversor.traverse(row);
+            root = null;
+        }
+
+
+        /**
+         * Returns value of the target
+         * @param slot - target index in the plan
+         * @return extracted text or attribute value, "" if nothing matched
+         */
+        String get(int slot) {
+            if (targets[slot].attribute == null) return joined[slot].toString();
+            return values[slot] == null ? "" : values[slot];
+        }
+
+
+        @Override
+        public void head(Node node, int depth) {
+            if (node instanceof TextNode) {
+                for (int i = 0; i < targets.length; i++) {
+                    if (open[i] != null) appendText(current[i], (TextNode) node);
+                }
+                return;
+            }
+            if (!(node instanceof Element)) return;
+
+            Element element = (Element) node;
+            boolean spacer = element.isBlock() || "br".equals(element.tagName());
+
+            for (int i = 0; i < targets.length; i++) {
+                Target target = targets[i];
+                if (open[i] != null) {
+                    //as Element.text() does for nested block elements
+                    if (spacer && current[i].length() > 0 && !lastCharIsWhitespace(current[i])) {
+                        current[i].append(' ');
+                    }
+                } else if (target.attribute == null) {
+                    if (target.evaluator.matches(root, element)) {
+                        open[i] = element;
+                        current[i].setLength(0);
+                    }
+                } else if (values[i] == null && element.hasAttr(target.attribute)
+                        && target.evaluator.matches(root, element)) {
+                    values[i] = element.attr(target.attribute);
+                }
+            }
+        }
+
+
+        @Override
+        public void tail(Node node, int depth) {
+            for (int i = 0; i < targets.length; i++) {
+                if (open[i] == node) {
+                    open[i] = null;
+                    //as Elements.text() does
+                    if (joined[i].length() != 0) joined[i].append(' ');
+                    joined[i].append(current[i].toString().trim());
+                }
+            }
+        }
+
+
+        private void appendText(StringBuilder accum, TextNode textNode) {
+            String text = textNode.getWholeText();
+            if (preserveWhitespace(textNode.parentNode())) {
+                accum.append(text);
+            } else {
+                StringUtil.appendNormalisedWhitespace(accum, text, lastCharIsWhitespace(accum));
+            }
+        }
+
+
+        private boolean preserveWhitespace(Node node) {
+            if (node instanceof Element) {
+                Element element = (Element) node;
+                return element.tag().preserveWhitespace()
+                        || element.parent() != null && element.parent().tag().preserveWhitespace();
+            }
+            return false;
+        }
+
+
+        private boolean lastCharIsWhitespace(StringBuilder sb) {
+            return sb.length() != 0 && sb.charAt(sb.length() - 1) == ' ';
+        }
+    }
+}
@@ -0,0 +1,407 @@
+package ru.kpfu.itis.html;
+
+import ru.kpfu.itis.table.ExcelTable;
+import ru.kpfu.itis.table.StringDictionary;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent cache of parsed HTML pages
+ * Entries are keyed by SHA-256 of the file content and hold extracted rows in binary form
+ * ("<digest>.rows" files). Digest of a file is reused while its size and modification time are
+ * the same ("paths.idx"). Total size of entries is bounded, least recently used entries are evicted
+ * (recency is kept in modification time of entry files, so it survives restarts).
+ * Header row is not cached, it is created on each hit (it holds the current date).
+ *
+ * Cache can be shared by several threads.
+ */
+public final class SnapshotCache {
+
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    /**
+     * Format of entries, it is a part of the digest, so entries of other formats are never read
+     **/
+    private static final int FORMAT_VERSION = 2; //2 - ints are stored only for cells kept as ints
+    private static final int MAGIC = 0x58435331; //XCS1
+
+    private static final String ENTRY_SUFFIX = ".rows";
+    private static final String PATHS_INDEX = "paths.idx";
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INTEGER = 2;
+    private static final byte SAME_AS_PREVIOUS = 3;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+
+    private final Path directory;
+    private final long maxBytes;
+
+    /**
+     * key -> entry size, in access order (eldest first)
+     **/
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long totalBytes;
+
+    /**
+     * absolute path of HTML file -> size, modification time and digest
+     **/
+    private final Map<String, FileStamp> stamps = new HashMap<>();
+    private int indexRecords;
+
+
+    /**
+     * Constructor
+     * Creates cache directory if it does not exist
+     *
+     * @param directory - cache directory
+     * @param maxBytes  - max total size of entries
+     * @throws IOException - if directory could not be created or read
+     */
+    public SnapshotCache(Path directory, long maxBytes) throws IOException {
+        if (maxBytes <= 0) throw new IllegalArgumentException(String.format("Cache size (%d) must be positive", maxBytes));
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+
+        Files.createDirectories(directory);
+        loadEntries();
+        loadStamps();
+    }
+
+
+    /**
+     * Returns cache key of HTML file, file is hashed only if its size or modification time has changed
+     *
+     * @param html - HTML file
+     * @return key of the file content
+     * @throws IOException - if file could not be read
+     */
+    String key(Path html) throws IOException {
+        Path absolute = html.toAbsolutePath();
+        BasicFileAttributes attributes = Files.readAttributes(absolute, BasicFileAttributes.class);
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+
+        synchronized (this) {
+            FileStamp stamp = stamps.get(absolute.toString());
+            if (stamp != null && stamp.size == size && stamp.modified == modified) return stamp.digest;
+        }
+
+        String digest = digest(absolute);
+        synchronized (this) {
+            stamps.put(absolute.toString(), new FileStamp(size, modified, digest));
+            appendStamp(absolute.toString(), size, modified, digest);
+        }
+        return digest;
+    }
+
+
+    /**
+     * Reads cached rows into new table
+     *
+     * @param key        - cache key
+     * @param headers    - header row of the table
+     * @param dictionary - dictionary of string cells of the table
+     * @return table or null if there is no entry
+     */
+    ExcelTable read(String key, String[] headers, StringDictionary dictionary) {
+        Path entry = directory.resolve(key + ENTRY_SUFFIX);
+        synchronized (this) {
+            if (entries.get(key) == null) return null; //also marks entry as recently used
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(entry), 1 << 16))) {
+            if (in.readInt() != MAGIC) throw new IOException("Invalid cache entry " + entry);
+            int rows = in.readInt();
+
+            ExcelTable table = new ExcelTable(rows + 1, headers.length, dictionary);
+            table.addRow(ExcelTable.HEADERS_KEY, headers);
+
+            String[] values = new String[headers.length]; //string cells of the row (previous values are reused)
+            int[] ints = new int[headers.length];
+            boolean[] typed = new boolean[headers.length]; //cells kept as ints
+            for (int row = 0; row < rows; row++) {
+                for (int column = 0; column < values.length; column++) {
+                    byte tag = in.readByte();
+                    typed[column] = tag == INTEGER;
+                    if (typed[column]) {
+                        ints[column] = in.readInt();
+                    } else {
+                        values[column] = readString(in, tag, values[column]);
+                    }
+                }
+                int tableRow = table.putRow(values[0]);
+                for (int column = 0; column < values.length; column++) {
+                    if (typed[column]) {
+                        table.setInt(tableRow, column, ints[column]);
+                    } else {
+                        table.setValue(tableRow, column, values[column]);
+                    }
+                }
+            }
+
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            return table;
+        } catch (IOException | RuntimeException e) {
+            remove(key); //corrupted or deleted entry is a miss
+            return null;
+        }
+    }
+
+
+    /**
+     * Writes rows of the table (except header row) as new entry, evicts least recently used entries
+     *
+     * @param key   - cache key
+     * @param table - parsed table
+     * @throws IOException - if entry could not be written
+     */
+    void write(String key, ExcelTable table) throws IOException {
+        Path entry = directory.resolve(key + ENTRY_SUFFIX);
+        Path temp = Files.createTempFile(directory, key, ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+                int header = table.rowIndex(ExcelTable.HEADERS_KEY);
+                out.writeInt(MAGIC);
+                out.writeInt(table.rowCount() - (header == -1 ? 0 : 1));
+
+                String[] previous = new String[table.columnCount()]; //previous string cell of the column
+                for (int row = 0; row < table.rowCount(); row++) {
+                    if (row == header) continue;
+                    for (int column = 0; column < previous.length; column++) {
+                        if (table.isInt(row, column)) {
+                            out.writeByte(INTEGER);
+                            out.writeInt(table.getInt(row, column)); //no conversion to String
+                            continue;
+                        }
+                        String value = table.getValue(row, column);
+                        writeString(out, value, previous[column]);
+                        previous[column] = value;
+                    }
+                }
+            }
+            move(temp, entry);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+
+        long size = Files.size(entry);
+        synchronized (this) {
+            Long old = entries.put(key, size);
+            totalBytes += size - (old == null ? 0 : old);
+            evict();
+        }
+    }
+
+
+    /**
+     * Value encoding: tag byte, then UTF string or int
+     * Cells kept as ints are stored as INTEGER and restored as ints, other cells as strings (so types are the same
+     * as in the parsed table). Names repeat for all rows of a group, so equal consecutive strings are stored as one byte.
+     */
+    private static void writeString(DataOutputStream out, String value, String previous) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value.equals(previous)) {
+            out.writeByte(SAME_AS_PREVIOUS);
+        } else {
+            out.writeByte(STRING);
+            out.writeUTF(value);
+        }
+    }
+
+
+    private static String readString(DataInputStream in, byte tag, String previous) throws IOException {
+        switch (tag) {
+            case NULL:
+                return null;
+            case SAME_AS_PREVIOUS:
+                return previous;
+            case STRING:
+                return in.readUTF();
+            default:
+                throw new IOException("Invalid value tag " + tag);
+        }
+    }
+
+
+    private void evict() throws IOException {
+        Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            Files.deleteIfExists(directory.resolve(entry.getKey() + ENTRY_SUFFIX));
+            totalBytes -= entry.getValue();
+            eldest.remove();
+        }
+    }
+
+
+    private synchronized void remove(String key) {
+        Long size = entries.remove(key);
+        if (size != null) totalBytes -= size;
+        try {
+            Files.deleteIfExists(directory.resolve(key + ENTRY_SUFFIX));
+        } catch (IOException ignored) {
+            //entry is not used anymore, it will be replaced by the next write
+        }
+    }
+
+
+    /**
+     * Loads entries in order of their modification time (least recently used first)
+     */
+    private void loadEntries() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + ENTRY_SUFFIX)) {
+            stream.forEach(files::add);
+        }
+
+        Map<Path, Long> modified = new HashMap<>();
+        for (Path file : files) {
+            modified.put(file, Files.getLastModifiedTime(file).toMillis());
+        }
+        files.sort((a, b) -> Long.compare(modified.get(a), modified.get(b)));
+
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            long size = Files.size(file);
+            entries.put(name.substring(0, name.length() - ENTRY_SUFFIX.length()), size);
+            totalBytes += size;
+        }
+        evict();
+    }
+
+
+    /**
+     * Paths index is append-only (path, size, modification time, digest), the last record of a path wins
+     * It is rewritten when it holds too many outdated records.
+     */
+    private void loadStamps() throws IOException {
+        Path index = directory.resolve(PATHS_INDEX);
+        if (!Files.exists(index)) return;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(index)))) {
+            while (true) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long modified = in.readLong();
+                String digest = in.readUTF();
+                stamps.put(path, new FileStamp(size, modified, digest));
+                indexRecords++;
+            }
+        } catch (EOFException e) {
+            //end of index (or truncated last record)
+        }
+
+        if (indexRecords > 2 * stamps.size() + 64) rewriteStamps();
+    }
+
+
+    private void appendStamp(String path, long size, long modified, String digest) throws IOException {
+        if (++indexRecords > 2 * stamps.size() + 64) {
+            rewriteStamps();
+            return;
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(
+                directory.resolve(PATHS_INDEX), StandardOpenOption.CREATE, StandardOpenOption.APPEND)))) {
+            writeStamp(out, path, new FileStamp(size, modified, digest));
+        }
+    }
+
+
+    private void rewriteStamps() throws IOException {
+        Path temp = Files.createTempFile(directory, PATHS_INDEX, ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                for (Map.Entry<String, FileStamp> stamp : stamps.entrySet()) {
+                    writeStamp(out, stamp.getKey(), stamp.getValue());
+                }
+            }
+            move(temp, directory.resolve(PATHS_INDEX));
+            indexRecords = stamps.size();
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+
+    private static void writeStamp(DataOutputStream out, String path, FileStamp stamp) throws IOException {
+        out.writeUTF(path);
+        out.writeLong(stamp.size);
+        out.writeLong(stamp.modified);
+        out.writeUTF(stamp.digest);
+    }
+
+
+    private static void move(Path from, Path to) throws IOException {
+        try {
+            Files.move(from, to, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+
+    private static String digest(Path file) throws IOException {
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); //SHA-256 is supported by every Java platform
+        }
+        sha.update((byte) FORMAT_VERSION);
+
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = Files.newInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                sha.update(buffer, 0, n);
+            }
+        }
+
+        byte[] hash = sha.digest();
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[2 * i] = HEX[(hash[i] >> 4) & 0xF];
+            hex[2 * i + 1] = HEX[hash[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+
+    private static final class FileStamp {
+        private final long size;
+        private final long modified;
+        private final String digest;
+
+        private FileStamp(long size, long modified, String digest) {
+            this.size = size;
+            this.modified = modified;
+            this.digest = digest;
+        }
+    }
+}
@@ -0,0 +1,643 @@
+package ru.kpfu.itis.html;
+
+import org.jsoup.parser.Parser;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * DOM-free extractor of basket rows
+ * Tokenizes HTML once and sends every '.b2b-basket-prods-list table tr' row
+ * to the collector as soon as the row is closed, so only the current row is kept in memory.
+ * Cell texts are normalized the same way as jsoup's Element.text() does.
+ */
+final class StreamingRowExtractor {
+
+    private static final String LIST_CLASS = "b2b-basket-prods-list";
+    private static final String NAME_CLASS = "c1";
+    private static final String TONE_CLASS = "c2";
+    private static final String COUNT_CLASS = "c9";
+
+    /**
+     * Element flags
+     **/
+    private static final int LIST = 1; //element with LIST_CLASS
+    private static final int LIST_TABLE = 1 << 1; //table inside of LIST_CLASS element
+    private static final int ROW = 1 << 2; //data row
+    private static final int NAME = 1 << 3; //'.c1' inside of the row
+    private static final int TONE = 1 << 4; //'.c2' inside of the row
+    private static final int COUNT = 1 << 5; //'.c9' inside of the row
+
+    private static final Set<String> VOID_TAGS = new HashSet<>(Arrays.asList(
+            "area", "base", "br", "col", "embed", "hr", "img", "input", "keygen", "link", "meta",
+            "param", "source", "track", "wbr"));
+
+    private static final Set<String> RAW_TEXT_TAGS = new HashSet<>(Arrays.asList("script", "style"));
+
+    private static final Set<String> RCDATA_TAGS = new HashSet<>(Arrays.asList("title", "textarea"));
+
+    /**
+     * Tags which add whitespace to the element text (see jsoup Tag)
+     **/
+    private static final Set<String> BLOCK_TAGS = new HashSet<>(Arrays.asList(
+            "html", "head", "body", "frameset", "script", "noscript", "style", "meta", "link", "title",
+            "frame", "noframes", "section", "nav", "aside", "hgroup", "header", "footer", "p", "h1", "h2",
+            "h3", "h4", "h5", "h6", "ul", "ol", "pre", "div", "blockquote", "hr", "address", "figure",
+            "figcaption", "form", "fieldset", "ins", "del", "dl", "dt", "dd", "li", "table", "caption",
+            "thead", "tfoot", "tbody", "colgroup", "col", "tr", "th", "td", "video", "audio", "canvas",
+            "details", "menu", "plaintext", "template", "article", "main", "svg", "math", "br"));
+
+
+    private final Reader reader;
+    private final TableRowCollector collector;
+
+    /**
+     * Input buffer
+     **/
+    private final char[] buffer = new char[8192];
+    private int position;
+    private int limit;
+    private int pushback = -1;
+
+    /**
+     * Open elements stack
+     **/
+    private String[] tags = new String[64];
+    private int[] flags = new int[64];
+    private int depth;
+
+    /**
+     * Open flagged elements counters
+     **/
+    private int listCount;
+    private int listTableCount;
+    private int rowCount;
+    private int nameCount;
+    private int toneCount;
+    private int countCount;
+
+    /**
+     * Current row state
+     **/
+    private String dataId;
+    private String rowspan;
+    private String maxCount;
+    private final StringBuilder nameText = new StringBuilder();
+    private final StringBuilder toneText = new StringBuilder();
+    private final StringBuilder nameElementText = new StringBuilder(); //text of one '.c1' element
+    private final StringBuilder toneElementText = new StringBuilder(); //text of one '.c2' element
+
+    /**
+     * Current tag state
+     **/
+    private final StringBuilder token = new StringBuilder();
+    private final StringBuilder rawText = new StringBuilder();
+    private String classAttr;
+    private String rowspanAttr;
+    private String dataIdAttr;
+    private String maxAttr;
+
+
+    private StreamingRowExtractor(Reader reader, TableRowCollector collector) {
+        this.reader = reader;
+        this.collector = collector;
+    }
+
+
+    /**
+     * Reads all rows from the reader into the collector
+     *
+     * @param reader    - HTML source
+     * @param collector - rows consumer
+     * @throws IOException - if the reader could not be read
+     */
+    static void extract(Reader reader, TableRowCollector collector) throws IOException {
+        new StreamingRowExtractor(reader, collector).run();
+    }
+
+
+    private void run() throws IOException {
+        int c;
+        while ((c = read()) != -1) {
+            if (c == '<') {
+                readMarkup();
+            } else {
+                appendText((char) c);
+            }
+        }
+        flushText();
+        popTo(0); //close all elements which are still open
+    }
+
+
+    /**
+     * Reads markup after '<'
+     */
+    private void readMarkup() throws IOException {
+        int c = read();
+        if (isLetter(c)) {
+            flushText();
+            readStartTag((char) c);
+        } else if (c == '/') {
+            int next = read();
+            if (isLetter(next)) {
+                flushText();
+                readEndTag((char) next);
+            } else {
+                unread(next);
+                skipTo('>'); //bogus comment
+            }
+        } else if (c == '!') {
+            flushText();
+            skipDeclaration();
+        } else if (c == '?') {
+            flushText();
+            skipTo('>');
+        } else {
+            appendText('<'); //not a tag, just text
+            unread(c);
+        }
+    }
+
+
+    private void readStartTag(char first) throws IOException {
+        String tag = readTagName(first);
+
+        classAttr = null;
+        rowspanAttr = null;
+        dataIdAttr = null;
+        maxAttr = null;
+        boolean selfClosing = readAttributes();
+
+        if (RAW_TEXT_TAGS.contains(tag)) {
+            if (!selfClosing) skipRawText(tag, false);
+            return;
+        }
+
+        closeImplied(tag);
+        onElementStart(tag);
+
+        if (VOID_TAGS.contains(tag) || selfClosing) {
+            return;
+        }
+
+        push(tag, elementFlags(tag));
+
+        if (RCDATA_TAGS.contains(tag)) {
+            skipRawText(tag, true);
+            popTo(depth - 1);
+        }
+    }
+
+
+    private void readEndTag(char first) throws IOException {
+        String tag = readTagName(first);
+        skipTo('>');
+        for (int i = depth - 1; i >= 0; i--) {
+            if (tags[i].equals(tag)) {
+                popTo(i);
+                return;
+            }
+        }
+        //end tag without start tag is ignored
+    }
+
+
+    /**
+     * Reads tag name (lower case)
+     */
+    private String readTagName(char first) throws IOException {
+        token.setLength(0);
+        token.append(Character.toLowerCase(first));
+        int c;
+        while ((c = read()) != -1) {
+            if (isWhitespace(c) || c == '>' || c == '/') {
+                unread(c);
+                break;
+            }
+            token.append(Character.toLowerCase((char) c));
+        }
+        return token.toString();
+    }
+
+
+    /**
+     * Reads tag attributes, only attributes used by extractor are kept
+     *
+     * @return true if tag is self-closing
+     */
+    private boolean readAttributes() throws IOException {
+        boolean selfClosing = false;
+        int c;
+        while ((c = read()) != -1) {
+            if (c == '>') return selfClosing;
+            if (isWhitespace(c)) continue;
+            if (c == '/') {
+                selfClosing = true;
+                continue;
+            }
+            selfClosing = false;
+
+            //attribute name
+            token.setLength(0);
+            token.append(Character.toLowerCase((char) c));
+            while ((c = read()) != -1 && !isWhitespace(c) && c != '=' && c != '>' && c != '/') {
+                token.append(Character.toLowerCase((char) c));
+            }
+            while (isWhitespace(c)) c = read();
+            if (c != '=') {
+                unread(c);
+                continue; //attribute without value
+            }
+
+            int attribute = attributeId(token);
+            c = read();
+            while (isWhitespace(c)) c = read();
+            if (c == -1) break;
+
+            //attribute value
+            token.setLength(0);
+            if (c == '"' || c == '\'') {
+                int quote = c;
+                while ((c = read()) != -1 && c != quote) {
+                    if (attribute != 0) token.append((char) c);
+                }
+            } else {
+                token.append((char) c);
+                while ((c = read()) != -1 && !isWhitespace(c) && c != '>') {
+                    if (attribute != 0) token.append((char) c);
+                }
+                unread(c);
+            }
+            if (attribute != 0) setAttribute(attribute, unescape(token.toString(), true));
+        }
+        return selfClosing;
+    }
+
+
+    private static int attributeId(CharSequence name) {
+        if (contentEquals(name, "class")) return 1;
+        if (contentEquals(name, "rowspan")) return 2;
+        if (contentEquals(name, "data-id")) return 3;
+        if (contentEquals(name, "max")) return 4;
+        return 0;
+    }
+
+
+    private void setAttribute(int attribute, String value) {
+        switch (attribute) {
+            case 1:
+                classAttr = value;
+                break;
+            case 2:
+                rowspanAttr = value;
+                break;
+            case 3:
+                dataIdAttr = value;
+                break;
+            case 4:
+                maxAttr = value;
+                break;
+            default:
+                break;
+        }
+    }
+
+
+    /**
+     * Closes elements which are closed implicitly by the start tag (as HTML tree builder does)
+     */
+    private void closeImplied(String tag) {
+        switch (tag) {
+            case "tr":
+                closeAbove("tr", "table");
+                break;
+            case "td":
+            case "th":
+                closeAbove("td", "tr");
+                closeAbove("th", "tr");
+                break;
+            case "tbody":
+            case "thead":
+            case "tfoot":
+                closeAbove("tr", "table");
+                closeAbove("tbody", "table");
+                closeAbove("thead", "table");
+                closeAbove("tfoot", "table");
+                break;
+            case "li":
+                closeAbove("li", "ul");
+                break;
+            default:
+                break;
+        }
+    }
+
+
+    /**
+     * Closes top-most 'tag' element if it is above the top-most 'scope' element
+     */
+    private void closeAbove(String tag, String scope) {
+        for (int i = depth - 1; i >= 0; i--) {
+            if (tags[i].equals(scope)) return;
+            if (tags[i].equals(tag)) {
+                popTo(i);
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Handles start of the element inside of captured text and void data elements
+     */
+    private void onElementStart(String tag) {
+        if (BLOCK_TAGS.contains(tag)) {
+            if (nameCount > 0) appendSpace(nameElementText);
+            if (toneCount > 0) appendSpace(toneElementText);
+        }
+        if (rowCount > 0 && countCount > 0 && maxCount == null && maxAttr != null && "input".equals(tag)) {
+            maxCount = maxAttr; //first '.c9 input' with max attribute
+        }
+    }
+
+
+    private int elementFlags(String tag) {
+        int result = 0;
+        if ("table".equals(tag) && listCount > 0) result |= LIST_TABLE;
+        if (hasClass(LIST_CLASS)) result |= LIST;
+        if ("tr".equals(tag) && listTableCount > 0 && rowCount == 0) result |= ROW;
+        if (rowCount > 0 || (result & ROW) != 0) {
+            if (hasClass(NAME_CLASS)) result |= NAME;
+            if (hasClass(TONE_CLASS)) result |= TONE;
+            if (hasClass(COUNT_CLASS)) result |= COUNT;
+        }
+        return result;
+    }
+
+
+    private void push(String tag, int elementFlags) {
+        if (depth == tags.length) {
+            tags = Arrays.copyOf(tags, depth * 2);
+            flags = Arrays.copyOf(flags, depth * 2);
+        }
+        tags[depth] = tag;
+        flags[depth] = elementFlags;
+        depth++;
+
+        if ((elementFlags & LIST) != 0) listCount++;
+        if ((elementFlags & LIST_TABLE) != 0) listTableCount++;
+        if ((elementFlags & ROW) != 0) {
+            rowCount++;
+            startRow();
+        }
+        if ((elementFlags & NAME) != 0 && nameCount++ == 0) {
+            nameElementText.setLength(0);
+            if (rowspan == null) rowspan = rowspanAttr; //first '.c1' with rowspan attribute
+        }
+        if ((elementFlags & TONE) != 0 && toneCount++ == 0) toneElementText.setLength(0);
+        if ((elementFlags & COUNT) != 0) countCount++;
+    }
+
+
+    /**
+     * Closes all elements from the top of the stack down to 'index' (inclusive)
+     */
+    private void popTo(int index) {
+        while (depth > index) {
+            int elementFlags = flags[--depth];
+            tags[depth] = null;
+
+            if ((elementFlags & NAME) != 0 && --nameCount == 0) {
+                joinText(nameText, nameElementText);
+            }
+            if ((elementFlags & TONE) != 0 && --toneCount == 0) {
+                joinText(toneText, toneElementText);
+            }
+            if ((elementFlags & COUNT) != 0) countCount--;
+            if ((elementFlags & ROW) != 0) {
+                rowCount--;
+                finishRow();
+            }
+            if ((elementFlags & LIST_TABLE) != 0) listTableCount--;
+            if ((elementFlags & LIST) != 0) listCount--;
+        }
+    }
+
+
+    private void startRow() {
+        dataId = dataIdAttr == null ? "" : dataIdAttr;
+        rowspan = null;
+        maxCount = null;
+        nameText.setLength(0);
+        toneText.setLength(0);
+    }
+
+
+    private void finishRow() {
+        if (collector.isGroupStart()) {
+            collector.startGroup(rowspan == null ? "" : rowspan, nameText.toString());
+        }
+        collector.addRow(dataId, toneText.toString(), maxCount == null ? "" : maxCount);
+    }
+
+
+    /**
+     * Joins texts of several selected elements (as jsoup's Elements.text() does)
+     */
+    private static void joinText(StringBuilder joined, StringBuilder elementText) {
+        if (joined.length() != 0) joined.append(' ');
+        int start = 0;
+        int end = elementText.length();
+        while (start < end && elementText.charAt(start) <= ' ') start++;
+        while (end > start && elementText.charAt(end - 1) <= ' ') end--;
+        joined.append(elementText, start, end);
+    }
+
+
+    private void appendText(char c) {
+        if (nameCount > 0 || toneCount > 0) rawText.append(c);
+    }
+
+
+    /**
+     * Appends collected text node to the captured elements
+     */
+    private void flushText() {
+        if (rawText.length() == 0) return;
+        String text = unescape(rawText.toString(), false);
+        rawText.setLength(0);
+        if (nameCount > 0) appendNormalised(nameElementText, text);
+        if (toneCount > 0) appendNormalised(toneElementText, text);
+    }
+
+
+    /**
+     * Appends text with collapsed whitespace (see jsoup StringUtil.appendNormalisedWhitespace)
+     */
+    private static void appendNormalised(StringBuilder accum, String text) {
+        boolean stripLeading = lastCharIsWhitespace(accum);
+        boolean lastWasWhite = false;
+        boolean reachedNonWhite = false;
+
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (isWhitespace(c)) {
+                if ((stripLeading && !reachedNonWhite) || lastWasWhite) continue;
+                accum.append(' ');
+                lastWasWhite = true;
+            } else {
+                accum.append(c);
+                lastWasWhite = false;
+                reachedNonWhite = true;
+            }
+        }
+    }
+
+
+    private static void appendSpace(StringBuilder accum) {
+        if (accum.length() > 0 && !lastCharIsWhitespace(accum)) accum.append(' ');
+    }
+
+
+    private static boolean lastCharIsWhitespace(StringBuilder sb) {
+        return sb.length() != 0 && sb.charAt(sb.length() - 1) == ' ';
+    }
+
+
+    private static String unescape(String text, boolean inAttribute) {
+        return text.indexOf('&') == -1 ? text : Parser.unescapeEntities(text, inAttribute);
+    }
+
+
+    /**
+     * Skips comment or doctype
+     */
+    private void skipDeclaration() throws IOException {
+        int c = read();
+        if (c == '-') {
+            int next = read();
+            if (next == '-') {
+                //comment, skip to '-->'
+                int dashes = 0;
+                while ((c = read()) != -1) {
+                    if (c == '>' && dashes >= 2) return;
+                    dashes = c == '-' ? dashes + 1 : 0;
+                }
+                return;
+            }
+            unread(next);
+        } else {
+            unread(c);
+        }
+        skipTo('>');
+    }
+
+
+    /**
+     * Skips content of script / style, or reads content of title / textarea as text
+     */
+    private void skipRawText(String tag, boolean asText) throws IOException {
+        int c;
+        while ((c = read()) != -1) {
+            if (c != '<') {
+                if (asText) appendText((char) c);
+                continue;
+            }
+            int next = read();
+            if (next != '/') {
+                if (asText) appendText('<');
+                unread(next);
+                continue;
+            }
+            int matched = 0;
+            while (matched < tag.length() && (next = read()) != -1
+                    && Character.toLowerCase((char) next) == tag.charAt(matched)) {
+                matched++;
+            }
+            if (matched == tag.length()) {
+                if (asText) flushText();
+                skipTo('>');
+                return;
+            }
+            if (asText) {
+                appendText('<');
+                appendText('/');
+                for (int i = 0; i < matched; i++) appendText(tag.charAt(i));
+            }
+            unread(next);
+        }
+        if (asText) flushText();
+    }
+
+
+    private void skipTo(char end) throws IOException {
+        int c;
+        while ((c = read()) != -1 && c != end) {
+            //skip
+        }
+    }
+
+
+    private boolean hasClass(String className) {
+        if (classAttr == null) return false;
+        int length = classAttr.length();
+        int start = 0;
+        while (start < length) {
+            while (start < length && isWhitespace(classAttr.charAt(start))) start++;
+            int end = start;
+            while (end < length && !isWhitespace(classAttr.charAt(end))) end++;
+            if (end - start == className.length() && classAttr.regionMatches(true, start, className, 0, end - start)) {
+                return true;
+            }
+            start = end;
+        }
+        return false;
+    }
+
+
+    private static boolean contentEquals(CharSequence sequence, String value) {
+        if (sequence.length() != value.length()) return false;
+        for (int i = 0; i < value.length(); i++) {
+            if (sequence.charAt(i) != value.charAt(i)) return false;
+        }
+        return true;
+    }
+
+
+    private static boolean isLetter(int c) {
+        return c != -1 && Character.isLetter((char) c);
+    }
+
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\f' || c == '\r';
+    }
+
+
+    private int read() throws IOException {
+        if (pushback != -1) {
+            int c = pushback;
+            pushback = -1;
+            return c;
+        }
+        if (position == limit) {
+            limit = reader.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position++];
+    }
+
+
+    private void unread(int c) {
+        pushback = c;
+    }
+
+}
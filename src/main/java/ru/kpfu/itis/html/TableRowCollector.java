@@ -0,0 +1,81 @@
+package ru.kpfu.itis.html;
+
+import ru.kpfu.itis.table.ExcelTable;
+import ru.kpfu.itis.table.Numbers;
+
+/**
+ * Collects basket rows into ExcelTable
+ * Carries product name between rows of one rowspan group
+ */
+final class TableRowCollector {
+
+    private final ExcelTable table;
+
+    private byte rowspan = 0; //HTML rowspan attribute
+    private String name; //product name
+
+
+    /**
+     * Constructor
+     * @param table - table to be filled (headers must be already added)
+     */
+    TableRowCollector(ExcelTable table) {
+        this.table = table;
+    }
+
+
+    /**
+     * Checks if the next row starts a new rowspan group
+     * @return true if name and rowspan must be read from the next row
+     */
+    boolean isGroupStart() {
+        return rowspan == 0;
+    }
+
+
+    /**
+     * Starts new rowspan group
+     *
+     * @param rowspanValue - value of '.c1' rowspan attribute
+     * @param nameText     - text of '.c1' cells
+     * @throws NumberFormatException - if rowspan attribute is not a number
+     */
+    void startGroup(String rowspanValue, String nameText) {
+        rowspan = Byte.parseByte(rowspanValue);
+        name = cleanText(nameText);
+    }
+
+
+    /**
+     * Adds row to the table with the name of the current group
+     *
+     * @param dataId     - data-id attribute of the row
+     * @param toneNumber - tone number
+     * @param maxCount   - max count
+     */
+    void addRow(String dataId, String toneNumber, String maxCount) {
+        --rowspan; //decrement rowspan
+
+        //add row to table, max count is kept as int
+        int row = table.putRow(dataId);
+        table.setValue(row, 0, dataId); //data-id
+        table.setValue(row, 1, name); //name
+        table.setValue(row, 2, toneNumber); //tone number
+        long count = maxCount == null ? Numbers.NOT_INT : Numbers.parseInt(maxCount);
+        if (count != Numbers.NOT_INT) {
+            table.setInt(row, 3, (int) count); //max count
+        } else {
+            table.setValue(row, 3, maxCount);
+        }
+    }
+
+
+    ExcelTable getTable() {
+        return table;
+    }
+
+
+    private static String cleanText(String text) {
+        return text.replace("PAESE", "").replace("  ", "").replace("Paese", "").replace("paese", "");
+    }
+}
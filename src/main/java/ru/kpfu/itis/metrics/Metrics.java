@@ -0,0 +1,126 @@
+package ru.kpfu.itis.metrics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Registry of stage metrics
+ * Metrics of each stage are published as MBean "ru.kpfu.itis:type=Metrics,stage=<name>".
+ * If system property "excelConverter.metricsFile" is set, writeFile() writes metrics there.
+ *
+ * Usage: long start = Metrics.start(); ... Metrics.stop(Stage.MERGE, start, rows, cells, bytes);
+ */
+public final class Metrics {
+
+    public static final String FILE_PROPERTY = "excelConverter.metricsFile";
+
+    private static final String DOMAIN = "ru.kpfu.itis";
+
+    private static final Map<Stage, StageMetrics> STAGES = new EnumMap<>(Stage.class);
+
+    static {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (Stage stage : Stage.values()) {
+            StageMetrics metrics = new StageMetrics(stage);
+            STAGES.put(stage, metrics);
+            try {
+                ObjectName name = new ObjectName(DOMAIN + ":type=Metrics,stage=" + stage.getMetricName());
+                if (!server.isRegistered(name)) server.registerMBean(metrics, name);
+            } catch (JMException | SecurityException e) {
+                System.err.println("Metrics are not published over JMX: " + e.getMessage());
+            }
+        }
+    }
+
+
+    private Metrics() { }
+
+
+    /**
+     * Returns start time of a stage
+     *
+     * @return nano time
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+
+    /**
+     * Records stage which was started at 'start'
+     *
+     * @param stage - stage
+     * @param start - value of start()
+     * @param rows  - rows processed
+     * @param cells - cells processed
+     * @param bytes - bytes read or written (0 if there is no file)
+     */
+    public static void stop(Stage stage, long start, long rows, long cells, long bytes) {
+        STAGES.get(stage).record(System.nanoTime() - start, rows, cells, bytes);
+    }
+
+
+    public static StageMetrics get(Stage stage) {
+        return STAGES.get(stage);
+    }
+
+
+    /**
+     * Returns size of the file for byte counters
+     *
+     * @param path - file path
+     * @return size or 0 if it is unknown
+     */
+    public static long fileSize(String path) {
+        try {
+            return Files.size(Paths.get(path));
+        } catch (IOException | RuntimeException e) {
+            return 0;
+        }
+    }
+
+
+    /**
+     * Writes metrics to the file of system property FILE_PROPERTY (does nothing if it is not set)
+     *
+     * @throws IOException - if file could not be written
+     */
+    public static void writeFile() throws IOException {
+        String file = System.getProperty(FILE_PROPERTY);
+        if (file != null && !file.isEmpty()) write(Paths.get(file));
+    }
+
+
+    /**
+     * Writes metrics of all stages (one stage per line, tab separated)
+     *
+     * @param path - metrics file (it is replaced)
+     * @throws IOException - if file could not be written
+     */
+    public static void write(Path path) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8);
+             PrintWriter out = new PrintWriter(writer)) {
+            out.println("# " + LocalDateTime.now());
+            out.println("stage\tcount\ttotal_ms\tmean_ms\tp50_ms\tp90_ms\tp99_ms\tmax_ms\trows\tcells\tbytes");
+            for (StageMetrics m : STAGES.values()) {
+                out.println(String.format(Locale.ROOT, "%s\t%d\t%.3f\t%.3f\t%.3f\t%.3f\t%.3f\t%.3f\t%d\t%d\t%d",
+                        m.getStage().getMetricName(), m.getCount(), m.getTotalMillis(), m.getMeanMillis(),
+                        m.getP50Millis(), m.getP90Millis(), m.getP99Millis(), m.getMaxMillis(),
+                        m.getRows(), m.getCells(), m.getBytes()));
+            }
+        }
+    }
+}
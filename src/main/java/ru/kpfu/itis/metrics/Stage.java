@@ -0,0 +1,21 @@
+package ru.kpfu.itis.metrics;
+
+/**
+ * Measured stages of conversion
+ */
+public enum Stage {
+
+    CREATE_TABLE("createTable"), READ_TABLE1("readTable1"), READ_TABLE2("readTable2"), READ_TABLES("readTables"),
+    MERGE("merge"), SORT("sort"), WRITE_TWO_TABLES("writeTwoTables"), WRITE_TABLE("writeTable"),
+    APPEND_TABLE("appendTable");
+
+    private final String metricName;
+
+    Stage(String metricName) {
+        this.metricName = metricName;
+    }
+
+    public String getMetricName() {
+        return metricName;
+    }
+}
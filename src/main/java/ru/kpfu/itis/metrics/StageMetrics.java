@@ -0,0 +1,153 @@
+package ru.kpfu.itis.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timer, latency histogram and row / cell / byte counters of one stage
+ * Histogram bucket i holds durations in [2^(i-1), 2^i) microseconds. Updates are lock-free.
+ */
+public final class StageMetrics implements StageMetricsMBean {
+
+    private static final int BUCKETS = 40;
+
+    private final Stage stage;
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+    private final LongAdder rows = new LongAdder();
+    private final LongAdder cells = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+
+    StageMetrics(Stage stage) {
+        this.stage = stage;
+    }
+
+
+    /**
+     * Records one run of the stage
+     *
+     * @param nanos - duration
+     * @param rows  - rows processed
+     * @param cells - cells processed
+     * @param bytes - bytes read or written (0 if there is no file)
+     */
+    void record(long nanos, long rows, long cells, long bytes) {
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulateAndGet(nanos, Math::max);
+
+        long micros = Math.max(nanos / 1000, 0);
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+        histogram.incrementAndGet(bucket);
+
+        this.rows.add(rows);
+        this.cells.add(cells);
+        this.bytes.add(bytes);
+    }
+
+
+    public Stage getStage() {
+        return stage;
+    }
+
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+
+    @Override
+    public double getTotalMillis() {
+        return totalNanos.sum() / 1e6;
+    }
+
+
+    @Override
+    public double getMeanMillis() {
+        long n = getCount();
+        return n == 0 ? 0 : getTotalMillis() / n;
+    }
+
+
+    @Override
+    public double getMaxMillis() {
+        return maxNanos.get() / 1e6;
+    }
+
+
+    @Override
+    public double getP50Millis() {
+        return percentile(0.5);
+    }
+
+
+    @Override
+    public double getP90Millis() {
+        return percentile(0.9);
+    }
+
+
+    @Override
+    public double getP99Millis() {
+        return percentile(0.99);
+    }
+
+
+    @Override
+    public long getRows() {
+        return rows.sum();
+    }
+
+
+    @Override
+    public long getCells() {
+        return cells.sum();
+    }
+
+
+    @Override
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+
+    @Override
+    public void reset() {
+        count.reset();
+        totalNanos.reset();
+        maxNanos.set(0);
+        for (int i = 0; i < BUCKETS; i++) histogram.set(i, 0);
+        rows.reset();
+        cells.reset();
+        bytes.reset();
+    }
+
+
+    /**
+     * Returns upper bound of the bucket holding the percentile, not more than max duration
+     */
+    private double percentile(double fraction) {
+        long total = 0;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = histogram.get(i);
+            total += counts[i];
+        }
+        if (total == 0) return 0;
+
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min((1L << i) / 1e3, getMaxMillis());
+        }
+        return getMaxMillis();
+    }
+}
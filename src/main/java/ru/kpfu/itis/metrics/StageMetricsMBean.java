@@ -0,0 +1,32 @@
+package ru.kpfu.itis.metrics;
+
+/**
+ * JMX view of one stage metrics (times are in milliseconds)
+ */
+public interface StageMetricsMBean {
+
+    long getCount();
+
+    double getTotalMillis();
+
+    double getMeanMillis();
+
+    double getMaxMillis();
+
+    /**
+     * Percentiles are upper bounds of histogram buckets (power of 2 microseconds)
+     **/
+    double getP50Millis();
+
+    double getP90Millis();
+
+    double getP99Millis();
+
+    long getRows();
+
+    long getCells();
+
+    long getBytes();
+
+    void reset();
+}
@@ -0,0 +1,79 @@
+package ru.kpfu.itis.table;
+
+/**
+ * Column storage of ExcelTable
+ * Values are addressed by row index, cells which were never set are null.
+ */
+abstract class Column {
+
+    /**
+     * Returns value of the cell
+     * @param row - row index
+     * @return value or null if the cell is not set
+     */
+    abstract String get(int row);
+
+
+    /**
+     * Sets value of the cell, column grows if it is needed
+     *
+     * @param row   - row index
+     * @param value - value of the cell
+     * @return column which holds the value (this or promoted column of another type)
+     */
+    abstract Column set(int row, String value);
+
+
+    /**
+     * Sets integer value of the cell (columns which keep ints override it, others keep its string form)
+     *
+     * @param row   - row index
+     * @param value - value of the cell
+     * @return column which holds the value (this or promoted column of another type)
+     */
+    Column setInt(int row, int value) {
+        return set(row, Integer.toString(value));
+    }
+
+
+    /**
+     * Copies values of first 'rows' cells to another column
+     */
+    static Column copy(Column from, Column to, int rows) {
+        Column result = to;
+        for (int row = 0; row < rows; row++) {
+            if (isInt(from, row)) {
+                result = result.setInt(row, ((IntColumn) from).intValue(row));
+            } else {
+                String value = from.get(row);
+                if (value != null) result = result.set(row, value);
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Copies one cell, integers are copied as ints (target cell is unset if source cell is not set)
+     * @return column which holds the value (see set)
+     */
+    static Column copy(Column from, int fromRow, Column to, int toRow) {
+        if (isInt(from, fromRow)) return to.setInt(toRow, ((IntColumn) from).intValue(fromRow));
+        return to.set(toRow, from.get(fromRow));
+    }
+
+
+    /**
+     * Checks if the cell is kept as int
+     */
+    static boolean isInt(Column column, int row) {
+        return column instanceof IntColumn && ((IntColumn) column).valueClass(row) == IntColumn.INTEGER;
+    }
+
+
+    static int grow(int length, int row) {
+        int capacity = Math.max(length, 16);
+        while (capacity <= row) capacity += capacity >> 1;
+        return capacity;
+    }
+}
@@ -0,0 +1,110 @@
+package ru.kpfu.itis.table;
+
+import java.text.Collator;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Sorts row permutation by one column
+ * Integer columns are compared as numbers, string columns by locale-aware ranks
+ * of distinct values of the column (computed once per sort, not per cell).
+ * Integers go first, then texts, blank and missing cells go last. Sort is stable.
+ */
+final class ColumnSorter {
+
+    /**
+     * Locale of product names
+     **/
+    private static final Locale TEXT_LOCALE = new Locale("ru", "RU");
+
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+
+    /**
+     * Compares two rows (physical row indexes)
+     */
+    interface RowComparator {
+        int compare(int rowA, int rowB);
+    }
+
+
+    private ColumnSorter() { }
+
+
+    /**
+     * Sorts rows by column, 'pinned' row stays first
+     *
+     * @param rows   - physical row indexes to be sorted (array is sorted in place)
+     * @param column - column storage
+     * @param pinned - physical index of row to be kept first, -1 if none
+     */
+    static void sort(int[] rows, Column column, int pinned) {
+        int from = 0;
+        if (pinned != -1) {
+            for (int i = 0; i < rows.length; i++) {
+                if (rows[i] == pinned) {
+                    System.arraycopy(rows, 0, rows, 1, i); //move pinned row to the top
+                    rows[0] = pinned;
+                    from = 1;
+                    break;
+                }
+            }
+        }
+        mergeSort(rows, Arrays.copyOf(rows, rows.length), from, rows.length, comparator(column, rows));
+    }
+
+
+    private static RowComparator comparator(Column column, int[] rows) {
+        Collator collator = Collator.getInstance(TEXT_LOCALE);
+
+        if (column instanceof StringColumn) {
+            int[] ranks = ((StringColumn) column).ranks(collator, rows); //values of this column only
+            return (a, b) -> Integer.compare(ranks[a], ranks[b]);
+        }
+
+        IntColumn integers = (IntColumn) column;
+        return (a, b) -> {
+            int classA = integers.valueClass(a);
+            int classB = integers.valueClass(b);
+            if (classA != classB) return Integer.compare(classA, classB);
+            if (classA == IntColumn.INTEGER) return Integer.compare(integers.intValue(a), integers.intValue(b));
+            if (classA == IntColumn.TEXT) return collator.compare(integers.get(a), integers.get(b));
+            return 0;
+        };
+    }
+
+
+    /**
+     * Stable merge sort of rows[from, to), 'buffer' holds the same elements
+     */
+    private static void mergeSort(int[] rows, int[] buffer, int from, int to, RowComparator comparator) {
+        if (to - from <= INSERTION_SORT_THRESHOLD) {
+            for (int i = from + 1; i < to; i++) {
+                int row = rows[i];
+                int j = i - 1;
+                while (j >= from && comparator.compare(rows[j], row) > 0) {
+                    rows[j + 1] = rows[j];
+                    j--;
+                }
+                rows[j + 1] = row;
+            }
+            return;
+        }
+
+        int middle = (from + to) >>> 1;
+        mergeSort(buffer, rows, from, middle, comparator);
+        mergeSort(buffer, rows, middle, to, comparator);
+
+        if (comparator.compare(buffer[middle - 1], buffer[middle]) <= 0) {
+            System.arraycopy(buffer, from, rows, from, to - from); //already ordered
+            return;
+        }
+        for (int i = from, left = from, right = middle; i < to; i++) {
+            if (right >= to || left < middle && comparator.compare(buffer[left], buffer[right]) <= 0) {
+                rows[i] = buffer[left++];
+            } else {
+                rows[i] = buffer[right++];
+            }
+        }
+    }
+}
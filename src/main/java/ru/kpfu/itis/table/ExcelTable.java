@@ -1,15 +1,21 @@
 package ru.kpfu.itis.table;
 
 import com.google.common.collect.HashBasedTable;
-import com.google.common.collect.Lists;
-import com.google.common.collect.Ordering;
 import com.google.common.collect.Table;
+import com.google.common.collect.Tables;
+import ru.kpfu.itis.metrics.Metrics;
+import ru.kpfu.itis.metrics.Stage;
 
 import java.util.*;
-import java.util.function.Consumer;
 
 /**
  * This class represents an excel table
+ * Data is stored by columns: key columns are dictionary encoded strings,
+ * history (max count) columns are int arrays with null bitmaps.
+ * Column types are not inferred from values: the schema of the basket table is fixed by column index
+ * (the first KEY_COLUMNS columns are strings, the rest are counts). Non-integer cells of a history column
+ * (header, decimals, text) are kept per cell, and the column is promoted to strings if there are too many.
+ * Rows are kept in insertion order, sort() returns read-only view with rows permutation.
  */
 public final class ExcelTable {
 
@@ -25,9 +31,26 @@ public final class ExcelTable {
 
 
     /**
-     * Table structure, Map<R, Map<C, V>>, where R - row, C - column, V - value
+     * Count of key columns (data-id, name, tone number), other columns are integer columns
      **/
-    private Table<String, String, String> table;
+    private static final int KEY_COLUMNS = 3;
+
+
+    /**
+     * Table structure, row key -> row index, one storage per column
+     **/
+    private final RowIndex rowIndex;
+    private final List<Column> columns;
+    private final StringDictionary dictionary;
+    private final int expectedRows;
+
+
+    /**
+     * Sorted view state
+     * order - view row -> physical row, positions - physical row -> view row (null if it is not a view)
+     **/
+    private final int[] order;
+    private final int[] positions;
 
 
     /**
@@ -48,34 +71,164 @@ public final class ExcelTable {
 
     /**
      * Constructor
-     * Creates HashBasedTable
+     * Creates columnar table
      * @param rows - rows count
      * @param columns - columns
      */
     public ExcelTable(int rows, int columns) {
-        this.table = HashBasedTable.create(rows, columns);
+        this(rows, columns, new StringDictionary(rows));
+    }
+
+
+    /**
+     * Constructor
+     * Creates columnar table which key cells are stored in the given dictionary
+     * (tables sharing a dictionary are merged by value ids)
+     * @param rows - rows count
+     * @param columns - columns
+     * @param dictionary - dictionary of string values
+     */
+    public ExcelTable(int rows, int columns, StringDictionary dictionary) {
+        this.expectedRows = Math.max(rows, 0);
+        this.rowIndex = new RowIndex(expectedRows);
+        this.dictionary = dictionary;
+        this.columns = new ArrayList<>(columns);
+        this.order = null;
+        this.positions = null;
         init(columns);
     }
 
 
+    /**
+     * Creates read-only view of the source table with rows in 'order'
+     * @param source - table which storage is shared
+     * @param order - view row -> physical row
+     */
+    private ExcelTable(ExcelTable source, int[] order) {
+        this.expectedRows = source.expectedRows;
+        this.rowIndex = source.rowIndex;
+        this.dictionary = source.dictionary;
+        this.columns = source.columns;
+        this.generatedColumnKeys = source.generatedColumnKeys;
+        this.order = order;
+        this.positions = new int[order.length];
+        for (int row = 0; row < order.length; row++) {
+            positions[order[row]] = row;
+        }
+    }
+
+
+    /**
+     * Returns the table as Guava table
+     * Table is not backed by Guava table anymore, so cells are copied on each call (all rows and columns).
+     * Returned table is unmodifiable, cells are changed by setValue / setInt.
+     * @return table, Map<R, Map<C, V>>, where R - row, C - column, V - value
+     * @deprecated - use getValue / getRowKey or copyToTable() (which states the cost of the call)
+     */
+    @Deprecated
     public Table<String, String, String> getTable() {
-        return this.table;
+        return copyToTable();
+    }
+
+
+    /**
+     * Copies cells to a new unmodifiable Guava table (all rows and columns on each call)
+     * @return table, Map<R, Map<C, V>>, where R - row, C - column, V - value
+     */
+    public Table<String, String, String> copyToTable() {
+        Table<String, String, String> table = HashBasedTable.create(rowCount(), columnCount());
+        for (int row = 0; row < rowCount(); row++) {
+            for (int column = 0; column < columnCount(); column++) {
+                String value = getValue(row, column);
+                if (value != null) table.put(getRowKey(row), generatedColumnKeys.get(column), value);
+            }
+        }
+        return Tables.unmodifiableTable(table);
     }
 
 
     public List<String> getGeneratedColumnKeys() {
-        return this.generatedColumnKeys;
+        return Collections.unmodifiableList(this.generatedColumnKeys);
     }
 
 
     /**
      * Returns cell's value
-     * @param row - row counted from 0
-     * @param column - column from 0
+     * @param row - row key
+     * @param column - column key
      * @return value of the cell
      */
     public String getValue(String row, String column) {
-        return this.table.get(row, column);
+        int rowIdx = rowIndex.get(row);
+        int columnIdx = columnIndex(column);
+        if (rowIdx == -1 || columnIdx == -1) return null;
+        return this.columns.get(columnIdx).get(rowIdx);
+    }
+
+
+    /**
+     * Returns cell's value
+     * @param row - row index counted from 0 (in insertion order)
+     * @param column - column index counted from 0
+     * @return value of the cell
+     */
+    public String getValue(int row, int column) {
+        return this.columns.get(column).get(physicalRow(row));
+    }
+
+
+    /**
+     * Checks if the cell holds an integer which is kept as int (see getInt)
+     * @param row - row index
+     * @param column - column index
+     * @return true if the cell value is an integer in canonical form
+     */
+    public boolean isInt(int row, int column) {
+        return Column.isInt(this.columns.get(column), physicalRow(row));
+    }
+
+
+    /**
+     * Returns integer value of the cell without conversion to String, cell must hold an int (see isInt)
+     * @param row - row index
+     * @param column - column index
+     * @return value of the cell
+     */
+    public int getInt(int row, int column) {
+        return ((IntColumn) this.columns.get(column)).intValue(physicalRow(row));
+    }
+
+
+    /**
+     * Checks if the column keeps integers as ints (history columns, unless most of values are not integers)
+     * Type of a column is decided when it is created, so it may be checked once per column.
+     * @param column - column index
+     * @return true for integer columns
+     */
+    public boolean isIntColumn(int column) {
+        return this.columns.get(column) instanceof IntColumn;
+    }
+
+
+    /**
+     * Returns row index of the key
+     * @param rowKey - row key
+     * @return row index or -1 if there is no such row
+     */
+    public int rowIndex(String rowKey) {
+        int row = this.rowIndex.get(rowKey);
+        if (row == -1 || positions == null) return row;
+        return row < positions.length ? positions[row] : -1; //row was added after the view was created
+    }
+
+
+    /**
+     * Returns row key by index
+     * @param row - row index
+     * @return row key
+     */
+    public String getRowKey(int row) {
+        return this.rowIndex.key(physicalRow(row));
     }
 
 
@@ -85,7 +238,7 @@ public final class ExcelTable {
      * @return integer column count
      */
     public int columnCount() {
-        return this.table.columnKeySet().size();
+        return this.columns.size();
     }
 
 
@@ -95,7 +248,7 @@ public final class ExcelTable {
      * @return integer row count
      */
     public int rowCount() {
-        return this.table.rowKeySet().size();
+        return order == null ? this.rowIndex.size() : order.length;
     }
 
 
@@ -105,7 +258,22 @@ public final class ExcelTable {
      * @return set of keys
      */
     public Set<String> columnKeys() {
-        return this.table.columnKeySet();
+        return new AbstractSet<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                return Collections.unmodifiableList(generatedColumnKeys).iterator();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof String && columnIndex((String) o) != -1;
+            }
+
+            @Override
+            public int size() {
+                return columnCount();
+            }
+        };
     }
 
 
@@ -115,7 +283,35 @@ public final class ExcelTable {
      * @return set of keys
      */
     public Set<String> rowKeys() {
-        return this.table.rowKeySet();
+        return new AbstractSet<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                return new Iterator<String>() {
+                    private int row = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return row < rowCount();
+                    }
+
+                    @Override
+                    public String next() {
+                        if (!hasNext()) throw new NoSuchElementException();
+                        return getRowKey(row++);
+                    }
+                };
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return rowIndex.get(o) != -1;
+            }
+
+            @Override
+            public int size() {
+                return rowCount();
+            }
+        };
     }
 
 
@@ -126,10 +322,39 @@ public final class ExcelTable {
      * @param values - String[] values
      */
     public void addRow(String rowKey, String[] values) {
+        checkWritable();
         addRowWithCheck(rowKey, values);
     }
 
 
+    /**
+     * Returns index of the row, adds row which cells are not set if there is no such row
+     * Cells are set then by setValue / setInt, e.g. when values are read typed.
+     *
+     * @param rowKey - row key /id
+     * @return row index
+     */
+    public int putRow(String rowKey) {
+        checkWritable();
+        int row = rowIndex.get(rowKey);
+        return row != -1 ? row : rowIndex.add(dictionary.intern(rowKey));
+    }
+
+
+    /**
+     * Sets integer value of the cell without conversion to String
+     * @param row - row index
+     * @param column - column index
+     * @param value - value of the cell
+     */
+    public void setInt(int row, int column, int value) {
+        checkWritable();
+        Column storage = columns.get(column);
+        Column result = storage.setInt(row, value);
+        if (result != storage) columns.set(column, result); //column was promoted
+    }
+
+
     /**
      * Adds column to an existing table
      * Column name will be generated automatically
@@ -137,169 +362,134 @@ public final class ExcelTable {
      * @param values - values in the column
      */
     public void addColumn(String[] values) {
-
+        checkWritable();
         addColumnWithCheck(getNextColumnKey(), values);
     }
 
 
     /**
-     * Merges with mergeTable
+     * Merges with mergeTable (hash join by row keys)
+     * Existing rows keep their order, new rows are appended in the order of mergeTable,
+     * last column of mergeTable is added as the new last column.
      *
      * @param mergeTable - table to be merged with
      * @param columns    - columns count to be merged (0 - none, 1 - first column,
      *                   2 - first two columns, ...)
      */
     public void merge(ExcelTable mergeTable, int columns) {
-
-        String[] newLastColumn = mergeLastColumns(mergeTable); //create new max count column
-
-        mergeTable.rowKeys().forEach(rowKey -> { //for each row key
-            if (isRowExist(rowKey)) {
-
-                //if row exists in the old table, merge with it
-                mergeRow(mergeTable.getTable().row(rowKey), rowKey, columns);
-
-            } else {
-
-                //else add first column cells of row
-                addRowWithoutCheck(rowKey, Arrays.copyOfRange(mergeTable.getTable()
-                        .row(rowKey).values().toArray(new String[0]), 0, columns));
-            }
-        });
-
-        addColumn(newLastColumn); //add last column with max count
+        checkWritable();
+        long start = Metrics.start();
+        TableMerger.merge(this, mergeTable, columns);
+        Metrics.stop(Stage.MERGE, start, mergeTable.rowCount(), (long) mergeTable.rowCount() * columns, 0);
     }
 
 
     /**
-     * Merges last columns of the tables
-     * @param table - table to be merged with
-     * @return merged last column
+     * Appends new row with blank cells
+     * @param rowKey - key of the new row, must not exist
+     * @return index of the row
      */
-    private String[] mergeLastColumns(ExcelTable table) {
-        List<String> newColumnValues = new ArrayList<>(rowCount());
-
-        Map<String, String> thisCol = getLastColumn(); // last column of current table
-        Map<String, String> tableCol = table.getLastColumn(); // last column of the table
-
-        //firstly go through current table's column row keys
-        for (String rowKey : thisCol.keySet()) {
-            if (table.isRowExist(rowKey)) {
-                newColumnValues.add(table.getValue(rowKey, table.getLastColumnKey())); //update it
-            } else {
-                newColumnValues.add(""); //clear, make it empty
-            }
-        }
-
-        //go through table
-        for (String rowKey : tableCol.keySet()) {
-            if (!isRowExist(rowKey)) {
-                newColumnValues.add(tableCol.get(rowKey)); //add not existing values
-            }
+    int appendRow(String rowKey) {
+        int row = rowIndex.add(dictionary.intern(rowKey)); //row key and data-id cell share one instance
+        for (int column = 0; column < columnCount(); column++) {
+            setValue(row, column, "");
         }
-
-        return newColumnValues.toArray(new String[0]);
-    }
-
-
-    /**
-     * Returns last column of the table
-     * @return row key, value map of last column
-     */
-    private Map<String, String> getLastColumn() {
-        return table.column(generatedColumnKeys.get(generatedColumnKeys.size() - 1));
+        return row;
     }
 
 
     /**
-     * Returns last column key (0, 1, ...)
-     * @return last column key
+     * Appends filled column
+     * @param column - column storage
      */
-    private String getLastColumnKey() {
-        return generatedColumnKeys.get(generatedColumnKeys.size() - 1);
+    void appendColumn(Column column) {
+        this.columns.add(column);
+        this.generatedColumnKeys.add(getNextColumnKey());
     }
 
 
-    /**
-     * Check if row with some key exists int this table
-     * @param rowKey - row's key to be checked
-     * @return true or false
-     */
-    private boolean isRowExist(String rowKey) {
-        return table.containsRow(rowKey);
-    }
-
+    private void addRowWithCheck(String rowKey, String[] values) {
 
-    /**
-     * Merges first 'columns' columns of row
-     *
-     * @param row     - row to be merged with
-     * @param columns - columns count to be merged
-     */
-    private void mergeRow(Map<String, String> row, String rowKey, int columns) {
-        if (row.size() <= columns) {
-            throw new IllegalArgumentException("Column count is greater than row size");
+        if (columnCount() > values.length) {
+            throw new IllegalArgumentException(String.format("Expected : %d, but it is %d value(s)",
+                    columnCount(), values.length));
         }
 
-        Map<String, String> tableRow = this.table.row(rowKey); //get row of table by key
+        int row = rowIndex.get(rowKey);
+        if (row == -1) row = rowIndex.add(dictionary.intern(rowKey));
 
-        for (String columnKey : row.keySet()) {
-            if (columns-- == 0) return;
-            tableRow.put(columnKey, row.get(columnKey));
+        for (int i = 0; i < columnCount(); i++) {
+            setValue(row, i, values[i]);
         }
-    }
 
+    }
 
-    private void addRowWithCheck(String rowKey, String[] values) {
 
-        if (this.generatedColumnKeys.size() > values.length) {
+    private void addColumnWithCheck(String columnKey, String[] values) {
+        if (this.generatedColumnKeys.contains(columnKey)) {
+            throw new IllegalArgumentException(String.format("Column key '%s' already exists", columnKey));
+        }
+        if (rowCount() > values.length) {
             throw new IllegalArgumentException(String.format("Expected : %d, but it is %d value(s)",
                     this.generatedColumnKeys.size(), values.length));
         }
-
-        for (int i = 0; i < this.generatedColumnKeys.size(); i++) {
-            table.put(rowKey, this.generatedColumnKeys.get(i), values[i]);
+        //for each row add 'columnKey' column's values
+        int column = columns.size();
+        this.columns.add(createColumn(column, rowCount()));
+        for (int row = 0; row < rowCount(); row++) {
+            setValue(row, column, values[row]);
         }
+        this.generatedColumnKeys.add(columnKey); //update columns list
+    }
+
 
+    /**
+     * Returns column storage
+     * @param column - column index
+     * @return storage
+     */
+    Column column(int column) {
+        return columns.get(column);
     }
 
 
-    private void addRowWithoutCheck(String rowKey, String[] values) {
+    public StringDictionary dictionary() {
+        return dictionary;
+    }
 
-        if (values.length < columnCount()) {
-            int old = values.length;
-            values = Arrays.copyOfRange(values, 0, columnCount());
-            Arrays.fill(values, old, columnCount(), "");
-        }
 
-        for (int i = 0; i < values.length; i++) {
-            try {
+    /**
+     * Returns physical row of the view row (the same row if table is not a view)
+     * @param row - row index
+     * @return storage row index
+     */
+    int physicalRow(int row) {
+        return order == null ? row : order[row];
+    }
 
-                table.put(rowKey, this.generatedColumnKeys.get(i), values[i]);
-            } catch (NullPointerException e) {
-                System.out.println(String.format("Index %d", i));
-            }
-        }
+
+    /**
+     * Sets value of the cell
+     * @param row - row index
+     * @param column - column index
+     * @param value - value of the cell (null - cell is not set)
+     */
+    public void setValue(int row, int column, String value) {
+        checkWritable();
+        Column storage = columns.get(column);
+        Column result = storage.set(row, value);
+        if (result != storage) columns.set(column, result); //column was promoted
     }
 
 
-    private void addColumnWithCheck(String columnKey, String[] values) {
-        if (this.generatedColumnKeys.contains(columnKey)) {
-            throw new IllegalArgumentException(String.format("Column key '%s' already exists", columnKey));
-        }
-        if (rowCount() > values.length) {
-            throw new IllegalArgumentException(String.format("Expected : %d, but it is %d value(s)",
-                    this.generatedColumnKeys.size(), values.length));
-        }
-        //for each row key add 'columnKey' column's values
-        rowKeys().forEach(new Consumer<String>() {
-            int i = 0;
-            @Override
-            public void accept(String rowKey) {
-                table.put(rowKey, columnKey, values[i++]);
-            }
-        });
-        this.generatedColumnKeys.add(columnKey); //update columns list
+    /**
+     * Creates storage of the column by its index (fixed schema, values are not inspected):
+     * key columns are StringColumns, history columns are IntColumns promoted on too many non-integer cells
+     */
+    Column createColumn(int column, int rows) {
+        int capacity = Math.max(rows, expectedRows);
+        if (column < KEY_COLUMNS) return new StringColumn(dictionary, capacity);
+        return new IntColumn(dictionary, capacity);
     }
 
 
@@ -307,6 +497,7 @@ public final class ExcelTable {
         this.generatedColumnKeys = new ArrayList<>(columns);
         for (Integer i = 0; i < columns; i++) {
             this.generatedColumnKeys.add(i, i.toString());
+            this.columns.add(createColumn(i, expectedRows));
         }
     }
 
@@ -316,6 +507,17 @@ public final class ExcelTable {
     }
 
 
+    /**
+     * Converts generated column key ("0", "1", ...) to column index
+     * @return column index or -1 if there is no such column
+     */
+    private int columnIndex(String columnKey) {
+        if (columnKey == null) return -1;
+        long column = Numbers.parseInt(columnKey);
+        return column >= 0 && column < columnCount() ? (int) column : -1;
+    }
+
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
@@ -327,82 +529,63 @@ public final class ExcelTable {
 
         //all column keys and row keys
         sb.append("====== row and column keys =======\n");
-        sb.append(table.rowKeySet().toString()).append("\n"); //row keys
-        sb.append(table.columnKeySet().toString()).append("\n"); //column keys
+        sb.append(rowKeys().toString()).append("\n"); //row keys
+        sb.append(columnKeys().toString()).append("\n"); //column keys
 
         //all data row by row
         sb.append("====== rows data =======\n");
-        table.rowKeySet().forEach(rowKey -> sb.append(table.row(rowKey)).append("\n"));
-
-        return sb.toString();
-    }
-
-
-    public ExcelTable sort(int column) {
-
-        List<Table.Cell<String, String, String>> filteredList = Lists.newArrayList();
-
-        Set<Table.Cell<String, String, String>> cells = table.cellSet();
-
-        String columnKey = generatedColumnKeys.get(column); // get columnKey
-        String columnHeader = table.column(columnKey).get(HEADERS_KEY);
-
-        for (Table.Cell<String, String, String> cell : cells) {
-            if (columnKey.equals(cell.getColumnKey())) {
-                filteredList.add(cell);
+        for (int row = 0; row < rowCount(); row++) {
+            sb.append('{');
+            for (int column = 0; column < columnCount(); column++) {
+                if (column > 0) sb.append(", ");
+                sb.append(generatedColumnKeys.get(column)).append('=').append(getValue(row, column));
             }
+            sb.append("}\n");
         }
-        Collections.sort(filteredList, compareByColumn(columnHeader));
-        ExcelTable excelTable = new ExcelTable(rowCount(), columnCount()); //new table, sorted
 
-        filteredList.forEach(cell -> excelTable.addRow(cell.getRowKey(), rowValues(cell.getRowKey())));
-
-        return excelTable;
+        return sb.toString();
     }
 
 
     /**
-     * Comparator that compare cells
-     * @param column - column name
-     * @return Comparator
+     * Sorts rows by column, header row stays first
+     * Integer columns are sorted as numbers, text columns in locale-aware order,
+     * blank cells go last, equal values keep their order.
+     * Data is not copied, the view is valid until this table is modified.
+     *
+     * @param column - column index
+     * @return read-only sorted view of this table
      */
-    public static Ordering<Table.Cell<String, String, String>> compareByColumn(final String column) {
-
-        return new Ordering<Table.Cell<String, String, String>>() {
-
-            @Override
-            public int compare(
-                    Table.Cell<String, String, String> cell1,
-                    Table.Cell<String, String, String> cell2
-            ) {
-                if (column.equals(cell1.getValue())) return 1;
-                if (column.equals(cell2.getValue())) return 1;
+    public ExcelTable sort(int column) {
+        if (column < 0 || column >= columnCount()) {
+            throw new IndexOutOfBoundsException(String.format("Index %d is out of bounds. [ %d ]",
+                    column, columnCount()));
+        }
 
-                String cell1Val =  cell1.getValue();
-                String cell2Val = cell2.getValue();
+        long start = Metrics.start();
+        int[] rows = new int[rowCount()];
+        for (int row = 0; row < rows.length; row++) {
+            rows[row] = physicalRow(row);
+        }
 
-                if (cell1Val == null && cell2Val == null) return 0;
-                if (cell1Val == null) return -1;
-                if (cell2Val == null) return 1;
+        ColumnSorter.sort(rows, columns.get(column), rowIndex.get(HEADERS_KEY));
+        Metrics.stop(Stage.SORT, start, rows.length, rows.length, 0);
 
-                return cell1Val.compareTo(cell2Val);
-            }
-        };
+        return new ExcelTable(this, rows); //storage is shared, rows are physical indexes
     }
 
 
     /**
-     * Gets all row values
-     * @param rowKey - row's key
-     * @return row values array
+     * Checks if table is sorted view
+     * @return true if table is read-only sorted view
      */
-    private String[] rowValues(String rowKey) {
-
-        List<String> values = new ArrayList<>(columnCount());
+    public boolean isView() {
+        return order != null;
+    }
 
-        table.row(rowKey).forEach((columnKey, value) -> values.add(value));
 
-        return values.toArray(new String[0]);
+    private void checkWritable() {
+        if (order != null) throw new UnsupportedOperationException("Sorted view is read-only");
     }
 
 
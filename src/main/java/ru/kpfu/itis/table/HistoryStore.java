@@ -0,0 +1,454 @@
+package ru.kpfu.itis.table;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary column store of the history table
+ * File is a log of records appended by each merge:
+ * DICTIONARY (new dictionary strings), ROWS (new row keys), CELLS (changed key cells),
+ * COLUMN (new column: int values with value classes or dictionary codes) and COMMIT.
+ * Records after the last COMMIT (interrupted write) are ignored and overwritten by the next merge.
+ *
+ * Each record is read into a heap buffer, columns are bulk-copied into ExcelTable storage
+ * and dictionary ids of the store are the ids of the table dictionary, so codes are not translated.
+ * Files are not memory-mapped (as anywhere in the project): a mapping is released only by GC,
+ * so the store could not be truncated by the next merge or replaced while it is mapped on Windows.
+ * A merge writes only the delta: new strings, new rows, changed key cells and the new column.
+ */
+public final class HistoryStore implements Closeable {
+
+    private static final int MAGIC = 0x58485331; //XHS1
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 5;
+
+    /**
+     * Record types
+     **/
+    private static final byte DICTIONARY = 1;
+    private static final byte ROWS = 2;
+    private static final byte CELLS = 3;
+    private static final byte COLUMN = 4;
+    private static final byte COMMIT = 5;
+
+    /**
+     * Column kinds
+     **/
+    private static final byte STRING_COLUMN = 1;
+    private static final byte INT_COLUMN = 2;
+
+
+    private final Path path;
+    private final FileChannel channel;
+    private final ExcelTable table;
+
+    /**
+     * Persisted state (dictionary size, rows and columns in the file)
+     **/
+    private int storedStrings;
+    private int storedRows;
+    private int storedColumns;
+    private long committedEnd = FILE_HEADER_SIZE; //end of the last committed record
+
+
+    private HistoryStore(Path path, FileChannel channel, ExcelTable table) {
+        this.path = path;
+        this.channel = channel;
+        this.table = table;
+    }
+
+
+    /**
+     * Opens existing store and loads the history table
+     *
+     * @param path - store file
+     * @return opened store
+     * @throws IOException - if file could not be read or it is not a history store
+     */
+    public static HistoryStore open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            HistoryStore store = new HistoryStore(path, channel, new ExcelTable(0, 0));
+            store.load();
+            return store;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+
+    /**
+     * Creates store (replaces existing file) holding cells of the table
+     * Only strings used by the table are written (its dictionary may be shared with other tables).
+     * Table is not modified and is not used by the store: the store is opened from the written file
+     * and loads its own table (see getTable()).
+     *
+     * @param path  - store file
+     * @param table - history table (not a sorted view)
+     * @return opened store
+     * @throws IOException - if file could not be written
+     */
+    public static HistoryStore create(Path path, ExcelTable table) throws IOException {
+        if (table.isView()) throw new IllegalArgumentException("Sorted view can not be stored");
+
+        Path temp = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                HistoryStore writer = new HistoryStore(temp, out, copyUsed(table));
+                out.write(fileHeader());
+                writer.writeDelta(null, 0);
+            }
+            try {
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return open(path);
+    }
+
+
+    /**
+     * Returns history table, it is modified only through merge()
+     *
+     * @return table loaded from the store
+     */
+    public ExcelTable getTable() {
+        return table;
+    }
+
+
+    /**
+     * Merges table into history (as ExcelTable.merge does) and appends the delta to the file
+     *
+     * @param mergeTable - table to be merged with
+     * @param columns    - count of key columns to be merged
+     * @throws IOException - if delta could not be written (file keeps the previous committed state,
+     *                     the store should be reopened)
+     */
+    public void merge(ExcelTable mergeTable, int columns) throws IOException {
+        int keyColumns = Math.min(columns, table.columnCount());
+        int[][] before = new int[keyColumns][]; //codes of key cells of existing rows, strings are not built
+        for (int column = 0; column < keyColumns; column++) {
+            Column storage = table.column(column);
+            before[column] = new int[storedRows];
+            for (int row = 0; row < storedRows; row++) {
+                before[column][row] = code(storage, row);
+            }
+        }
+
+        table.merge(mergeTable, columns);
+        writeDelta(before, keyColumns);
+    }
+
+
+    /**
+     * Rewrites the file with one record of each type (drops strings which are not used anymore)
+     * This store is closed, the returned one must be used instead.
+     *
+     * @return compacted store
+     * @throws IOException - if file could not be written
+     */
+    public HistoryStore compact() throws IOException {
+        close();
+        return create(path, table); //strings which are not used anymore are not copied
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+
+    /**
+     * Copies table into a new table with its own dictionary, so the dictionary holds only strings of the table
+     */
+    private static ExcelTable copyUsed(ExcelTable table) {
+        ExcelTable copy = new ExcelTable(table.rowCount(), 0);
+        for (int row = 0; row < table.rowCount(); row++) {
+            copy.appendRow(table.getRowKey(row));
+        }
+        for (int column = 0; column < table.columnCount(); column++) {
+            Column storage = table.column(column);
+            copy.appendColumn(Column.copy(storage, copy.createColumn(column, table.rowCount()), table.rowCount()));
+        }
+        return copy;
+    }
+
+
+    /**
+     * Writes records of rows, key cells, columns and strings added after the last commit
+     *
+     * @param before     - codes of key cells of stored rows before the merge (null - no key cells were changed)
+     * @param keyColumns - count of key columns in 'before'
+     */
+    private void writeDelta(int[][] before, int keyColumns) throws IOException {
+        StringDictionary dictionary = table.dictionary();
+        int rows = table.rowCount();
+
+        //codes are built first, they may add strings to the dictionary
+        ByteBuffer rowRecord = record(ROWS, 4 + (rows - storedRows) * 4);
+        rowRecord.putInt(rows - storedRows);
+        for (int row = storedRows; row < rows; row++) {
+            rowRecord.putInt(dictionary.id(table.getRowKey(row)));
+        }
+
+        List<int[]> cells = new ArrayList<>();
+        for (int column = 0; column < keyColumns && before != null; column++) {
+            Column storage = table.column(column);
+            for (int row = 0; row < storedRows; row++) {
+                int code = code(storage, row);
+                if (code != before[column][row]) cells.add(new int[]{row, column, code});
+            }
+        }
+        if (storedColumns > 0) { //cells of new rows in stored columns
+            for (int row = storedRows; row < rows; row++) {
+                for (int column = 0; column < keyColumns; column++) {
+                    cells.add(new int[]{row, column, code(table.column(column), row)});
+                }
+            }
+        }
+        ByteBuffer cellRecord = record(CELLS, 4 + cells.size() * 12);
+        cellRecord.putInt(cells.size());
+        for (int[] cell : cells) {
+            cellRecord.putInt(cell[0]).putInt(cell[1]).putInt(cell[2]);
+        }
+
+        List<ByteBuffer> columnRecords = new ArrayList<>();
+        for (int column = storedColumns; column < table.columnCount(); column++) {
+            columnRecords.add(columnRecord(table.column(column), rows));
+        }
+
+        int strings = dictionary.size(); //all codes above are below it, dictionary may grow concurrently if shared
+        ByteBuffer dictionaryRecord = dictionaryRecord(dictionary, storedStrings, strings);
+
+        //records are applied in this order on load, uncommitted records are overwritten
+        channel.truncate(committedEnd);
+        channel.position(committedEnd);
+        write(dictionaryRecord);
+        write(rowRecord);
+        write(cellRecord);
+        for (ByteBuffer columnRecord : columnRecords) {
+            write(columnRecord);
+        }
+        write(record(COMMIT, 0));
+        channel.force(false);
+
+        storedStrings = strings;
+        storedRows = rows;
+        storedColumns = table.columnCount();
+        committedEnd = channel.position();
+    }
+
+
+    private int code(String value) {
+        return value == null ? 0 : table.dictionary().id(value) + 1;
+    }
+
+
+    /**
+     * Returns code of the cell, dictionary id of string column is taken without building the String
+     */
+    private int code(Column column, int row) {
+        if (column instanceof StringColumn) return ((StringColumn) column).valueId(row) + 1;
+        return code(column.get(row));
+    }
+
+
+    private ByteBuffer columnRecord(Column column, int rows) {
+        if (column instanceof StringColumn) {
+            StringColumn strings = (StringColumn) column;
+            ByteBuffer record = record(COLUMN, 5 + rows * 4);
+            record.put(STRING_COLUMN).putInt(rows);
+            for (int row = 0; row < rows; row++) {
+                record.putInt(strings.valueId(row) + 1);
+            }
+            return record;
+        }
+
+        IntColumn integers = (IntColumn) column;
+        ByteBuffer record = record(COLUMN, 5 + rows * 5);
+        record.put(INT_COLUMN).putInt(rows);
+        for (int row = 0; row < rows; row++) {
+            int valueClass = integers.valueClass(row);
+            if (valueClass == IntColumn.INTEGER) {
+                record.putInt(integers.intValue(row));
+            } else if (valueClass == IntColumn.TEXT) {
+                record.putInt(code(integers.get(row)) - 1);
+            } else {
+                record.putInt(0);
+            }
+        }
+        for (int row = 0; row < rows; row++) {
+            record.put((byte) integers.valueClass(row));
+        }
+        return record;
+    }
+
+
+    private static ByteBuffer dictionaryRecord(StringDictionary dictionary, int from, int to) {
+        List<byte[]> strings = new ArrayList<>(to - from);
+        int size = 4;
+        for (int id = from; id < to; id++) {
+            byte[] bytes = dictionary.get(id).getBytes(StandardCharsets.UTF_8);
+            strings.add(bytes);
+            size += 4 + bytes.length;
+        }
+
+        ByteBuffer record = record(DICTIONARY, size);
+        record.putInt(strings.size());
+        for (byte[] bytes : strings) {
+            record.putInt(bytes.length).put(bytes);
+        }
+        return record;
+    }
+
+
+    /**
+     * Allocates record with header (type, payload length), payload is filled by caller
+     */
+    private static ByteBuffer record(byte type, int payload) {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload);
+        record.put(type).putInt(payload);
+        return record;
+    }
+
+
+    private void write(ByteBuffer record) throws IOException {
+        if (record.hasRemaining()) throw new IllegalStateException("Record is not filled");
+        record.flip();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+    }
+
+
+    private static ByteBuffer fileHeader() {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION);
+        header.flip();
+        return header;
+    }
+
+
+    /**
+     * Reads committed records into the table
+     */
+    private void load() throws IOException {
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(Math.max(FILE_HEADER_SIZE, RECORD_HEADER_SIZE));
+        header.limit(FILE_HEADER_SIZE);
+        channel.read(header, 0);
+        header.flip();
+        if (header.remaining() < FILE_HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSION) {
+            throw new IOException(String.format("File '%s' is not a history store", path));
+        }
+
+        List<long[]> pending = new ArrayList<>(); //records since the last commit (position, type, length)
+        long position = FILE_HEADER_SIZE;
+        while (position + RECORD_HEADER_SIZE <= size) {
+            header.clear();
+            header.limit(RECORD_HEADER_SIZE);
+            channel.read(header, position);
+            header.flip();
+            byte type = header.get();
+            int length = header.getInt();
+            if (length < 0 || position + RECORD_HEADER_SIZE + length > size) break; //interrupted write
+
+            long payload = position + RECORD_HEADER_SIZE;
+            position = payload + length;
+            if (type != COMMIT) {
+                pending.add(new long[]{payload, type, length});
+                continue;
+            }
+
+            for (long[] record : pending) {
+                apply((byte) record[1], read(record[0], (int) record[2]));
+            }
+            pending.clear();
+            committedEnd = position;
+        }
+
+        storedStrings = table.dictionary().size();
+        storedRows = table.rowCount();
+        storedColumns = table.columnCount();
+    }
+
+
+    /**
+     * Reads payload of the record into a heap buffer
+     */
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                throw new IOException(String.format("History store '%s' is truncated", path));
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+
+    private void apply(byte type, ByteBuffer buffer) throws IOException {
+        StringDictionary dictionary = table.dictionary();
+        switch (type) {
+            case DICTIONARY:
+                int strings = buffer.getInt();
+                for (int i = 0; i < strings; i++) {
+                    byte[] bytes = new byte[buffer.getInt()];
+                    buffer.get(bytes);
+                    int expected = dictionary.size();
+                    if (dictionary.id(new String(bytes, StandardCharsets.UTF_8)) != expected) {
+                        throw new IOException(String.format("Duplicate string in history store '%s'", path));
+                    }
+                }
+                break;
+            case ROWS:
+                int rows = buffer.getInt();
+                for (int i = 0; i < rows; i++) {
+                    table.appendRow(dictionary.get(buffer.getInt()));
+                }
+                break;
+            case CELLS:
+                int cells = buffer.getInt();
+                for (int i = 0; i < cells; i++) {
+                    int row = buffer.getInt();
+                    int column = buffer.getInt();
+                    int code = buffer.getInt();
+                    table.setValue(row, column, code == 0 ? null : dictionary.get(code - 1));
+                }
+                break;
+            case COLUMN:
+                byte kind = buffer.get();
+                int[] values = new int[buffer.getInt()];
+                buffer.asIntBuffer().get(values); //bulk copy from the record buffer
+                if (kind == STRING_COLUMN) {
+                    table.appendColumn(new StringColumn(dictionary, values));
+                } else {
+                    buffer.position(buffer.position() + values.length * 4);
+                    byte[] classes = new byte[values.length];
+                    buffer.get(classes);
+                    table.appendColumn(IntColumn.restore(dictionary, values, classes));
+                }
+                break;
+            default:
+                throw new IOException(String.format("Unknown record %d in history store '%s'", type, path));
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package ru.kpfu.itis.table;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Integer column (max count history)
+ * Integers are kept in int[] with a null bitmap, blank cells in another bitmap.
+ * Other values (header, decimals) are kept aside, if there are too many of them
+ * the column is promoted to StringColumn.
+ */
+final class IntColumn extends Column {
+
+    private static final int MAX_OTHER_VALUES = 64;
+
+    /**
+     * Value classes in sort order
+     **/
+    static final int INTEGER = 0;
+    static final int TEXT = 1;
+    static final int BLANK = 2;
+    static final int MISSING = 3;
+
+    private final StringDictionary dictionary; //for promotion
+    private int[] values;
+    private final BitSet integers = new BitSet(); //cell holds integer
+    private final BitSet blanks = new BitSet(); //cell holds ""
+    private final Map<Integer, String> others = new HashMap<>(); //cell holds other string
+
+
+    IntColumn(StringDictionary dictionary, int expectedRows) {
+        this.dictionary = dictionary;
+        this.values = new int[Math.max(expectedRows, 0)];
+    }
+
+
+    /**
+     * Restores column from stored cells
+     *
+     * @param dictionary - dictionary of text values
+     * @param values     - integer value or dictionary id of text value of each row (array is used as is)
+     * @param classes    - value class of each row (INTEGER, TEXT, BLANK or MISSING)
+     * @return column
+     */
+    static IntColumn restore(StringDictionary dictionary, int[] values, byte[] classes) {
+        IntColumn column = new IntColumn(dictionary, 0);
+        column.values = values;
+        for (int row = 0; row < classes.length; row++) {
+            switch (classes[row]) {
+                case INTEGER:
+                    column.integers.set(row);
+                    break;
+                case TEXT:
+                    column.others.put(row, dictionary.get(values[row]));
+                    break;
+                case BLANK:
+                    column.blanks.set(row);
+                    break;
+                default:
+                    break;
+            }
+        }
+        return column;
+    }
+
+
+    @Override
+    String get(int row) {
+        if (integers.get(row)) return Integer.toString(values[row]);
+        if (blanks.get(row)) return "";
+        return others.isEmpty() ? null : others.get(row);
+    }
+
+
+    /**
+     * Returns class of the cell value (INTEGER, TEXT, BLANK or MISSING)
+     * @param row - row index
+     * @return value class
+     */
+    int valueClass(int row) {
+        if (integers.get(row)) return INTEGER;
+        if (blanks.get(row)) return BLANK;
+        return !others.isEmpty() && others.containsKey(row) ? TEXT : MISSING;
+    }
+
+
+    /**
+     * Returns integer value of the cell, cell class must be INTEGER
+     * @param row - row index
+     * @return value
+     */
+    int intValue(int row) {
+        return values[row];
+    }
+
+
+    @Override
+    Column set(int row, String value) {
+        integers.clear(row);
+        blanks.clear(row);
+        if (!others.isEmpty()) others.remove(row);
+
+        if (value == null) return this;
+        if (value.isEmpty()) {
+            blanks.set(row);
+            return this;
+        }
+
+        long parsed = Numbers.parseInt(value);
+        if (parsed != Numbers.NOT_INT) return setInt(row, (int) parsed);
+
+        others.put(row, value);
+        if (others.size() > MAX_OTHER_VALUES && others.size() > integers.cardinality()) {
+            return promote();
+        }
+        return this;
+    }
+
+
+    @Override
+    Column setInt(int row, int value) {
+        blanks.clear(row);
+        if (!others.isEmpty()) others.remove(row);
+        if (row >= values.length) values = Arrays.copyOf(values, grow(values.length, row));
+        values[row] = value;
+        integers.set(row);
+        return this;
+    }
+
+
+    private Column promote() {
+        int rows = Math.max(Math.max(integers.length(), blanks.length()), 1);
+        for (Integer row : others.keySet()) rows = Math.max(rows, row + 1);
+        return copy(this, new StringColumn(dictionary, rows), rows);
+    }
+}
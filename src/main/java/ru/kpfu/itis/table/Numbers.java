@@ -0,0 +1,44 @@
+package ru.kpfu.itis.table;
+
+/**
+ * Allocation-free parsing of integer cells
+ * Only the canonical form is accepted (as Integer.toString gives it: no '+', no leading zeros, no "-0"),
+ * so an integer kept as int is written back as exactly the same text.
+ */
+public final class Numbers {
+
+    /**
+     * Result of parseInt for values which are not integers
+     **/
+    public static final long NOT_INT = Long.MIN_VALUE;
+
+
+    private Numbers() { }
+
+
+    /**
+     * Parses integer in canonical form
+     * @param value - characters to be parsed (e.g. text of a sheet cell or an HTML attribute)
+     * @return parsed value or NOT_INT if value is not an integer in canonical form or it is out of int range
+     */
+    public static long parseInt(CharSequence value) {
+        int length = value.length();
+        if (length == 0) return NOT_INT;
+        boolean negative = value.charAt(0) == '-';
+        int i = negative ? 1 : 0;
+        if (i == length || length - i > 10) return NOT_INT;
+        if (value.charAt(i) == '0' && length - i > 1) return NOT_INT; //leading zero
+
+        long result = 0;
+        for (; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') return NOT_INT;
+            result = result * 10 + (c - '0');
+        }
+        if (negative) {
+            if (result == 0) return NOT_INT; //"-0"
+            result = -result;
+        }
+        return result < Integer.MIN_VALUE || result > Integer.MAX_VALUE ? NOT_INT : result;
+    }
+}
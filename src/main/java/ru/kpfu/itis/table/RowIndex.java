@@ -0,0 +1,91 @@
+package ru.kpfu.itis.table;
+
+import java.util.Arrays;
+
+/**
+ * Row key to row index map
+ * Open addressing hash table over keys stored in insertion order, rows are never removed.
+ */
+final class RowIndex {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private String[] keys; //row index -> key
+    private int[] slots; //hash slot -> row index + 1, 0 - empty slot
+    private int size;
+
+
+    RowIndex(int expectedRows) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedRows * 2) capacity <<= 1;
+        this.slots = new int[capacity];
+        this.keys = new String[Math.max(expectedRows, MIN_CAPACITY)];
+    }
+
+
+    /**
+     * Returns row index of the key
+     * @param key - row key
+     * @return row index or -1 if there is no such key
+     */
+    int get(Object key) {
+        if (key == null) return -1;
+        int mask = slots.length - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            int row = slots[slot] - 1;
+            if (row == -1) return -1;
+            if (keys[row].equals(key)) return row;
+        }
+    }
+
+
+    /**
+     * Adds new key, key must not exist
+     * @param key - row key
+     * @return row index of the key
+     */
+    int add(String key) {
+        if (size == keys.length) keys = Arrays.copyOf(keys, size * 2);
+        if ((size + 1) * 2 > slots.length) rehash(slots.length * 2);
+
+        keys[size] = key;
+        insert(size);
+        return size++;
+    }
+
+
+    /**
+     * Returns key of the row
+     * @param row - row index
+     * @return row key
+     */
+    String key(int row) {
+        if (row >= size) throw new IndexOutOfBoundsException(String.format("Row %d, size %d", row, size));
+        return keys[row];
+    }
+
+
+    int size() {
+        return size;
+    }
+
+
+    private void insert(int row) {
+        int mask = slots.length - 1;
+        int slot = hash(keys[row]) & mask;
+        while (slots[slot] != 0) slot = (slot + 1) & mask;
+        slots[slot] = row + 1;
+    }
+
+
+    private void rehash(int capacity) {
+        slots = new int[capacity];
+        for (int row = 0; row < size; row++) insert(row);
+    }
+
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,109 @@
+package ru.kpfu.itis.table;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Dictionary encoded string column (names, tone numbers ...)
+ */
+final class StringColumn extends Column {
+
+    private final StringDictionary dictionary;
+    private int[] codes; //value id + 1, 0 - cell is not set
+
+
+    StringColumn(StringDictionary dictionary, int expectedRows) {
+        this.dictionary = dictionary;
+        this.codes = new int[Math.max(expectedRows, 0)];
+    }
+
+
+    /**
+     * Restores column from stored codes
+     * @param codes - value id + 1 of each row, 0 - cell is not set (array is used as is)
+     */
+    StringColumn(StringDictionary dictionary, int[] codes) {
+        this.dictionary = dictionary;
+        this.codes = codes;
+    }
+
+
+    @Override
+    String get(int row) {
+        if (row >= codes.length || codes[row] == 0) return null;
+        return dictionary.get(codes[row] - 1);
+    }
+
+
+    /**
+     * Returns dictionary id of the cell value
+     * @param row - row index
+     * @return value id or -1 if the cell is not set
+     */
+    int valueId(int row) {
+        return row >= codes.length ? -1 : codes[row] - 1;
+    }
+
+
+    /**
+     * Sets cell by dictionary id
+     * @param row - row index
+     * @param id  - value id or -1 to unset the cell
+     */
+    void setValueId(int row, int id) {
+        if (row >= codes.length) codes = Arrays.copyOf(codes, grow(codes.length, row));
+        codes[row] = id + 1;
+    }
+
+
+    /**
+     * Ranks values of the rows, equal values get equal ranks, blank value and unset cells go last
+     * Only distinct values of these rows are collated (dictionary may hold values of other tables),
+     * each of them once by its collation key.
+     *
+     * @param collator - text collator
+     * @param rows     - physical rows to be ranked
+     * @return rank of each row (indexed by physical row)
+     */
+    int[] ranks(Collator collator, int[] rows) {
+        BitSet used = new BitSet();
+        int size = 0;
+        for (int row : rows) {
+            int id = valueId(row);
+            if (id >= 0) used.set(id);
+            size = Math.max(size, row + 1);
+        }
+
+        int[] ids = new int[used.cardinality()]; //ascending
+        CollationKey[] keys = new CollationKey[ids.length];
+        for (int i = 0, id = used.nextSetBit(0); id >= 0; i++, id = used.nextSetBit(id + 1)) {
+            ids[i] = id;
+            keys[i] = collator.getCollationKey(dictionary.get(id));
+        }
+        Arrays.sort(keys);
+
+        int[] idRanks = new int[ids.length]; //rank of ids[i]
+        for (int i = 0, rank = 0; i < keys.length; i++) {
+            if (i > 0 && keys[i - 1].compareTo(keys[i]) != 0) rank = i;
+            String value = keys[i].getSourceString();
+            idRanks[Arrays.binarySearch(ids, dictionary.id(value))] = value.isEmpty() ? Integer.MAX_VALUE - 1 : rank;
+        }
+
+        int[] ranks = new int[size];
+        for (int row : rows) {
+            int id = valueId(row);
+            ranks[row] = id == -1 ? Integer.MAX_VALUE : idRanks[Arrays.binarySearch(ids, id)];
+        }
+        return ranks;
+    }
+
+
+    @Override
+    Column set(int row, String value) {
+        if (row >= codes.length) codes = Arrays.copyOf(codes, grow(codes.length, row));
+        codes[row] = value == null ? 0 : dictionary.id(value) + 1;
+        return this;
+    }
+}
@@ -0,0 +1,84 @@
+package ru.kpfu.itis.table;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dictionary of strings
+ * Each distinct value is stored once and referenced by id (0, 1, 2 ...), ids are never reused.
+ * Dictionary may be shared by tables of one run (HTML pages and the workbook history they are merged into),
+ * then key cells of these tables are copied and compared by id.
+ *
+ * Thread-safe: lookups of known values are lock-free, new values are added under the lock.
+ * NOTE: values are never removed, so a dictionary must not outlive the tables of its run
+ * (there is no process-wide dictionary, tables have their own one by default).
+ */
+public final class StringDictionary {
+
+    private final Map<String, Integer> ids;
+    private volatile String[] values; //replaced on growth, filled slots are never changed
+    private volatile int size;
+
+
+    /**
+     * Constructor
+     * @param expectedSize - expected count of distinct values
+     */
+    public StringDictionary(int expectedSize) {
+        this.ids = new ConcurrentHashMap<>(Math.max(expectedSize, 16));
+        this.values = new String[Math.max(expectedSize, 16)];
+    }
+
+
+    /**
+     * Returns id of the value, adds value if it is new
+     * @param value - not null value
+     * @return value id
+     */
+    public int id(String value) {
+        Integer id = ids.get(value);
+        if (id != null) return id;
+
+        synchronized (this) {
+            id = ids.get(value);
+            if (id != null) return id;
+
+            String[] array = values;
+            int n = size;
+            if (n == array.length) {
+                array = Arrays.copyOf(array, n + (n >> 1));
+                values = array;
+            }
+            array[n] = value;
+            size = n + 1;
+            ids.put(value, n); //id is published after the value
+            return n;
+        }
+    }
+
+
+    /**
+     * Returns value by id
+     * @param id - value id
+     * @return value
+     */
+    public String get(int id) {
+        return values[id];
+    }
+
+
+    /**
+     * Returns the stored instance equal to the value, adds value if it is new
+     * @param value - not null value
+     * @return value stored in the dictionary
+     */
+    public String intern(String value) {
+        return get(id(value));
+    }
+
+
+    public int size() {
+        return size;
+    }
+}
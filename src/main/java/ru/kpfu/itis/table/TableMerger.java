@@ -0,0 +1,71 @@
+package ru.kpfu.itis.table;
+
+/**
+ * Merge engine of ExcelTable
+ * Single linear hash join of the merged table rows against the row index of the target table.
+ * Key columns and the new history column are produced in the same pass.
+ *
+ * If both tables share the dictionary, string key cells are copied by value id (no hashing of values).
+ *
+ * Ordering rule: existing rows keep their order, new rows are appended in the order of the merged table.
+ */
+final class TableMerger {
+
+    private TableMerger() { }
+
+
+    /**
+     * Merges 'source' into 'target'
+     * Key columns of matched rows are overwritten, new rows are appended with blank history,
+     * last column of 'source' becomes new last column of 'target' (blank for rows missing in 'source').
+     *
+     * @param target     - table to be updated
+     * @param source     - table to be merged with
+     * @param keyColumns - count of first columns to be merged
+     */
+    static void merge(ExcelTable target, ExcelTable source, int keyColumns) {
+        if (source.rowCount() > 0 && source.columnCount() <= keyColumns) {
+            throw new IllegalArgumentException("Column count is greater than row size");
+        }
+
+        int oldRows = target.rowCount();
+        int sourceLastColumn = source.columnCount() - 1;
+
+        Column newColumn = target.createColumn(target.columnCount(), oldRows + source.rowCount());
+        for (int row = 0; row < oldRows; row++) {
+            newColumn = newColumn.set(row, ""); //clear, make it empty
+        }
+
+        StringColumn[] sourceKeys = new StringColumn[keyColumns]; //null - cells are copied as strings
+        StringColumn[] targetKeys = new StringColumn[keyColumns];
+        for (int column = 0; column < keyColumns && source.dictionary() == target.dictionary(); column++) {
+            if (column >= target.columnCount()) break;
+            Column sourceColumn = source.column(column);
+            Column targetColumn = target.column(column);
+            if (sourceColumn instanceof StringColumn && targetColumn instanceof StringColumn) {
+                sourceKeys[column] = (StringColumn) sourceColumn;
+                targetKeys[column] = (StringColumn) targetColumn;
+            }
+        }
+
+        for (int sourceRow = 0; sourceRow < source.rowCount(); sourceRow++) {
+            String rowKey = source.getRowKey(sourceRow);
+            int row = target.rowIndex(rowKey);
+
+            if (row == -1) {
+                row = target.appendRow(rowKey); //new row, history cells are blank
+            }
+            for (int column = 0; column < keyColumns; column++) {
+                if (targetKeys[column] != null) {
+                    targetKeys[column].setValueId(row, sourceKeys[column].valueId(source.physicalRow(sourceRow)));
+                } else {
+                    target.setValue(row, column, source.getValue(sourceRow, column));
+                }
+            }
+            //counts are copied as ints
+            newColumn = Column.copy(source.column(sourceLastColumn), source.physicalRow(sourceRow), newColumn, row);
+        }
+
+        target.appendColumn(newColumn);
+    }
+}
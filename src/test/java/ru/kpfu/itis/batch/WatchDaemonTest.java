@@ -0,0 +1,99 @@
+package ru.kpfu.itis.batch;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.kpfu.itis.html.HTMLTableService.ParseMode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Burst of files arriving to the watched directory is merged as one batch
+ * Test does not depend on timing: the quiet time is much longer than copying of the burst, and the result
+ * is awaited until a deadline which covers polling watch services (e.g. macOS polls every 10 seconds).
+ */
+public class WatchDaemonTest {
+
+    private static final long QUIET_MILLIS = 2000;
+    private static final long MAX_DELAY_MILLIS = 30000;
+    private static final long DEADLINE_MILLIS = 60000;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+
+    @Test
+    public void burstOfFilesIsMergedOnce() throws Exception {
+        Path directory = folder.newFolder("inbox").toPath();
+        Path target = folder.getRoot().toPath().resolve("history.xlsx");
+        List<List<Path>> batches = new CopyOnWriteArrayList<>();
+        List<IOException> errors = new CopyOnWriteArrayList<>();
+
+        WatchDaemon daemon = new WatchDaemon(directory, target, new BatchConverter(2, 4, ParseMode.DOM, null),
+                QUIET_MILLIS, MAX_DELAY_MILLIS, new WatchDaemon.Listener() {
+            @Override
+            public void merged(List<Path> files, BatchSummary summary) {
+                if (summary.getFailed() > 0) errors.add(new IOException(summary.getErrors().toString()));
+                batches.add(files);
+            }
+
+            @Override
+            public void failed(List<Path> files, IOException error) {
+                errors.add(error);
+            }
+        });
+        Thread thread = new Thread(() -> {
+            try {
+                daemon.run();
+            } catch (IOException | InterruptedException e) {
+                errors.add(new IOException(e));
+            }
+        });
+        thread.start();
+
+        try {
+            for (int i = 0; i < 5; i++) { //burst, files arrive within the quiet time of each other
+                copyPage(directory.resolve("page-" + i + ".html"));
+            }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DEADLINE_MILLIS);
+            while (mergedFiles(batches) < 5 && errors.isEmpty() && System.nanoTime() < deadline) {
+                Thread.sleep(50);
+            }
+        } finally {
+            daemon.close(); //pending files would be merged as another batch
+            thread.join(DEADLINE_MILLIS);
+        }
+
+        assertTrue("errors: " + errors, errors.isEmpty());
+        assertEquals(1, batches.size());
+        assertEquals(5, batches.get(0).size());
+        assertTrue(Files.exists(target));
+        assertFalse(thread.isAlive());
+    }
+
+
+    private static int mergedFiles(List<List<Path>> batches) {
+        int count = 0;
+        for (List<Path> batch : batches) {
+            count += batch.size();
+        }
+        return count;
+    }
+
+
+    private static void copyPage(Path file) throws IOException {
+        try (InputStream page = WatchDaemonTest.class.getResourceAsStream("/ru/kpfu/itis/html/rowspan.html")) {
+            Files.copy(page, file);
+        }
+    }
+}
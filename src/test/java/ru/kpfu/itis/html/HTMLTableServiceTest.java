@@ -0,0 +1,166 @@
+package ru.kpfu.itis.html;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.kpfu.itis.html.HTMLTableService.ParseMode;
+import ru.kpfu.itis.table.ExcelTable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Parse modes must build the same table: STREAMING and PARALLEL are compared with the jsoup DOM path
+ * Header date cell is not compared (it is the time of parsing).
+ */
+public class HTMLTableServiceTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final HTMLTableService service = new HTMLTableService();
+
+
+    @Test
+    public void streamingDecodesEntitiesAsDom() throws Exception {
+        assertStreamingAsDom(page("entities.html"));
+    }
+
+
+    @Test
+    public void streamingResolvesRowspanGroupsAsDom() throws Exception {
+        assertStreamingAsDom(page("rowspan.html"));
+    }
+
+
+    @Test
+    public void streamingNormalizesWhitespaceAsDom() throws Exception {
+        assertStreamingAsDom(page("whitespace.html"));
+    }
+
+
+    @Test
+    public void streamingJoinsNestedTagsAsDom() throws Exception {
+        assertStreamingAsDom(page("nested.html"));
+    }
+
+
+    @Test
+    public void streamingRecoversMalformedMarkupAsDom() throws Exception {
+        assertStreamingAsDom(page("malformed.html"));
+    }
+
+
+    @Test
+    public void streamingReadsGeneratedPageAsDom() throws Exception {
+        assertStreamingAsDom(generatePage(500, 17));
+    }
+
+
+    @Test
+    public void streamingReadsPageLargerThanBufferAsDom() throws Exception {
+        String path = generatePage(2000, 31);
+        assertTrue("page fits into the buffer", new File(path).length() > 4L * HtmlInput.BUFFER_BYTES);
+        assertStreamingAsDom(path);
+    }
+
+
+    @Test
+    public void parallelBuildsSameTableAsSequential() throws Exception {
+        String path = generatePage(1200, 23); //more rows than the parallel threshold
+        String dom = dump(service.createTable(path, ParseMode.DOM));
+        assertTrue("page is too small for parallel extraction", dom.split("\n").length > 2048);
+        assertEquals(dom, dump(service.createTable(path, ParseMode.PARALLEL)));
+    }
+
+
+    @Test
+    public void parallelOnWorkerPoolBuildsSameTableAsSequential() throws Exception {
+        String path = generatePage(1200, 29);
+        String dom = dump(service.createTable(path, ParseMode.DOM));
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            assertEquals(dom, pool.submit(() -> dump(service.createTable(path, ParseMode.PARALLEL))).get());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+
+    private void assertStreamingAsDom(String path) throws IOException {
+        String dom = dump(service.createTable(path, ParseMode.DOM));
+        assertTrue("page has no data rows", dom.indexOf('\n') < dom.length() - 1);
+        assertEquals(dom, dump(service.createTable(path, ParseMode.STREAMING)));
+    }
+
+
+    /**
+     * Returns path of the sample page from test resources
+     */
+    private static String page(String name) throws URISyntaxException {
+        return Paths.get(HTMLTableServiceTest.class.getResource(name).toURI()).toString();
+    }
+
+
+    /**
+     * Writes basket page with random rowspan groups, entities, whitespace and unclosed cells
+     *
+     * @param groups - count of name groups (1 to 4 rows each)
+     * @param seed   - random seed
+     * @return path to the page
+     */
+    private String generatePage(int groups, long seed) throws IOException {
+        File file = folder.newFile("generated-" + groups + "-" + seed + ".html");
+        Random random = new Random(seed);
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))) {
+            out.println("<!DOCTYPE html><html><head><meta charset=\"utf-8\"><title>Корзина &amp; x</title>"
+                    + "<script>var a = '<tr>';</script></head><body>");
+            out.println("<table><tr data-id=\"999\"><td class=\"c1\" rowspan=\"1\">outside</td></tr></table>");
+            out.println("<div class=\"wrap b2b-basket-prods-list\"><!-- <tr> --><table><tbody>");
+            int id = 1000;
+            for (int group = 0; group < groups; group++) {
+                int span = 1 + random.nextInt(4);
+                for (int k = 0; k < span; k++) {
+                    out.print("<tr data-id='" + (id++) + "'>");
+                    if (k == 0) {
+                        out.print("<td class=\"c1 x\" rowspan=\"" + span + "\">\n  <a href=#>PAESE  Помада &quot;Тон&quot;"
+                                + "<br>№ " + group + "</a> <span>Paese&nbsp;x</span>\n</td>");
+                    }
+                    out.print("<td class=c2> <b>" + (random.nextInt(90) + 1) + "</b> &lt;t&gt;</td>");
+                    out.print("<td class=c9><div><input type=text max=\"" + random.nextInt(50) + "\"/></div>");
+                    out.print(random.nextBoolean() ? "</td></tr>\n" : "\n");
+                }
+            }
+            out.println("</tbody></table></div></body></html>");
+        }
+        return file.getPath();
+    }
+
+
+    /**
+     * Text of the table: row keys, cells and typed ints (marked with '#'), header date cell is skipped
+     */
+    private static String dump(ExcelTable table) {
+        StringBuilder result = new StringBuilder();
+        for (int row = 0; row < table.rowCount(); row++) {
+            result.append(table.getRowKey(row)).append(':');
+            int columns = row == 0 ? table.columnCount() - 1 : table.columnCount();
+            for (int column = 0; column < columns; column++) {
+                result.append(" [").append(table.getValue(row, column)).append(']');
+                if (table.isInt(row, column)) result.append('#');
+            }
+            result.append('\n');
+        }
+        return result.toString();
+    }
+}
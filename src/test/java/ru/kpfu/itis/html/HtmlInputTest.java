@@ -0,0 +1,72 @@
+package ru.kpfu.itis.html;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Content decoded through the bounded window must equal the whole file decoded at once
+ * Characters split by window boundaries and BOM are checked.
+ */
+public class HtmlInputTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+
+    @Test
+    public void decodesCharactersSplitByWindow() throws Exception {
+        //'a' shifts two-byte letters, so one of them crosses every window boundary
+        String text = "a" + repeat('ж', HtmlInput.BUFFER_BYTES * 3 / 2);
+        String path = write(text.getBytes(StandardCharsets.UTF_8));
+        try (HtmlInput input = HtmlInput.open(path)) {
+            assertEquals(text, input.text());
+        }
+    }
+
+
+    @Test
+    public void readerSkipsBomAndFillsSmallBuffers() throws Exception {
+        String text = "<meta charset=\"windows-1251\">" + repeat('ж', HtmlInput.BUFFER_BYTES + 1);
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        byte[] content = new byte[bytes.length + 3];
+        content[0] = (byte) 0xEF; //UTF-8 BOM overrides meta charset
+        content[1] = (byte) 0xBB;
+        content[2] = (byte) 0xBF;
+        System.arraycopy(bytes, 0, content, 3, bytes.length);
+
+        try (HtmlInput input = HtmlInput.open(write(content))) {
+            Reader reader = input.reader();
+            StringBuilder result = new StringBuilder();
+            char[] buffer = new char[7];
+            int n;
+            while ((n = reader.read(buffer, 0, buffer.length)) != -1) {
+                result.append(buffer, 0, n);
+            }
+            assertEquals(text, result.toString());
+        }
+    }
+
+
+    private String write(byte[] content) throws IOException {
+        File file = folder.newFile();
+        Files.write(file.toPath(), content);
+        return file.getPath();
+    }
+
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}